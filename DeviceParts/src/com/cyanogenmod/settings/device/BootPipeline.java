@@ -0,0 +1,166 @@
+package com.cyanogenmod.settings.device;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the boot-time settings replay off the main thread.
+ *
+ * Steps run in order on a background thread while the broadcast is kept
+ * alive with goAsync(). The broadcast is finished when the last step
+ * completes or the deadline expires, whichever comes first; steps that
+ * have not started by then are skipped. The time taken by each step and
+ * by the whole run is logged.
+ */
+public final class BootPipeline
+{
+    private static final String TAG = "DeviceParts";
+
+    public static final long DEFAULT_DEADLINE_MS = 8000;
+
+    public static abstract class Step {
+        final String mName;
+
+        public Step(String name) {
+            mName = name;
+        }
+
+        public abstract void run(Context context);
+    }
+
+    private static ScheduledExecutorService sExecutor;
+
+    private final Context mContext;
+    private final ArrayList<Step> mSteps = new ArrayList<Step>();
+    private final long[] mTimings;
+
+    private BroadcastReceiver.PendingResult mResult;
+    private long mStartTime;
+    private int mCompleted;
+    private boolean mFinished;
+
+    public BootPipeline(Context context, int capacity) {
+        mContext = context.getApplicationContext();
+        mTimings = new long[capacity];
+    }
+
+    public BootPipeline add(Step step) {
+        if (mSteps.size() == mTimings.length) {
+            throw new IllegalStateException("too many boot steps");
+        }
+        mSteps.add(step);
+        return this;
+    }
+
+    /**
+     * Starts the pipeline. The pending result, if any, is finished once
+     * the pipeline is done or has run out of time.
+     */
+    public void start(BroadcastReceiver.PendingResult result, long deadlineMs) {
+        mResult = result;
+        mStartTime = SystemClock.elapsedRealtime();
+
+        ScheduledExecutorService executor = getExecutor();
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                onDeadline();
+            }
+        }, deadlineMs, TimeUnit.MILLISECONDS);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                runSteps();
+            }
+        });
+    }
+
+    private void runSteps() {
+        for (int i = 0; i < mSteps.size(); i++) {
+            synchronized (this) {
+                if (mFinished) {
+                    return;
+                }
+            }
+            Step step = mSteps.get(i);
+            long start = SystemClock.elapsedRealtime();
+            try {
+                step.run(mContext);
+            } catch (RuntimeException ex) {
+                Log.e(TAG, "boot step " + step.mName + " failed", ex);
+            }
+            synchronized (this) {
+                mTimings[i] = SystemClock.elapsedRealtime() - start;
+                mCompleted = i + 1;
+            }
+        }
+        finish(false);
+    }
+
+    private void onDeadline() {
+        finish(true);
+    }
+
+    private void finish(boolean timedOut) {
+        synchronized (this) {
+            if (mFinished) {
+                return;
+            }
+            mFinished = true;
+        }
+        report(timedOut);
+        if (mResult != null) {
+            mResult.finish();
+            mResult = null;
+        }
+    }
+
+    private synchronized void report(boolean timedOut) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("boot apply ");
+        sb.append(timedOut ? "timed out" : "done");
+        sb.append(" in ").append(SystemClock.elapsedRealtime() - mStartTime).append("ms [");
+        for (int i = 0; i < mSteps.size(); i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(mSteps.get(i).mName).append('=');
+            if (i < mCompleted) {
+                sb.append(mTimings[i]).append("ms");
+            } else if (i == mCompleted && timedOut) {
+                sb.append("running");
+            } else {
+                sb.append("skipped");
+            }
+        }
+        sb.append(']');
+        if (timedOut) {
+            Log.w(TAG, sb.toString());
+        } else {
+            Log.i(TAG, sb.toString());
+        }
+    }
+
+    private static synchronized ScheduledExecutorService getExecutor() {
+        if (sExecutor == null) {
+            // One thread runs the steps, the other enforces the deadline.
+            sExecutor = Executors.newScheduledThreadPool(2, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "DevicePartsBoot");
+                    t.setPriority(Thread.NORM_PRIORITY - 1);
+                    return t;
+                }
+            });
+        }
+        return sExecutor;
+    }
+}
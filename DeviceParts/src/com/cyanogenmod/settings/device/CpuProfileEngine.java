@@ -0,0 +1,206 @@
+package com.cyanogenmod.settings.device;
+
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+
+/**
+ * Applies named sets of cpufreq governor tunables.
+ *
+ * Each profile has values for the ondemand and the interactive governor;
+ * the set matching the running governor is used. Nodes already holding the
+ * wanted value are skipped, the rest are written through one
+ * {@link SysfsWriter} flush and read back through {@link SysfsCache}. If
+ * any node does not hold its new value afterwards, the nodes that were
+ * written are restored, so a profile is either applied as a whole or not
+ * at all.
+ *
+ * The running governor is published as sys.cpufreq.governor, on which
+ * init hands that governor's nodes to system. They only exist while the
+ * governor runs, so init cannot do this at boot for every governor.
+ *
+ * "balanced" holds the values the power HAL writes once per governor as a
+ * fallback until a profile is applied.
+ */
+public final class CpuProfileEngine
+{
+    private static final String TAG = "DeviceParts";
+
+    public static final String KEY_CPU_PROFILE = "cpu_profile";
+
+    public static final String PROFILE_AUTO = "auto";
+    public static final String PROFILE_POWERSAVE = "powersave";
+    public static final String PROFILE_BALANCED = "balanced";
+    public static final String PROFILE_PERFORMANCE = "performance";
+    public static final String DEFAULT_PROFILE = PROFILE_BALANCED;
+
+    /** Every node holds the profile's value */
+    public static final int RESULT_APPLIED = 0;
+    /** The profile could not be applied yet and may be retried */
+    public static final int RESULT_FAILED = 1;
+    /** The governor's nodes are not writable; retrying will not help */
+    public static final int RESULT_DENIED = 2;
+
+    static final String GOVERNOR = "/sys/devices/system/cpu/cpu0/cpufreq/scaling_governor";
+    static final String GOVERNOR_PROPERTY = "sys.cpufreq.governor";
+
+    private static final String ONDEMAND = "/sys/devices/system/cpu/cpufreq/ondemand/";
+    private static final String INTERACTIVE = "/sys/devices/system/cpu/cpufreq/interactive/";
+
+    private static final String[] ONDEMAND_NODES = {
+        ONDEMAND + "sampling_rate",
+        ONDEMAND + "up_threshold",
+        ONDEMAND + "io_is_busy",
+        ONDEMAND + "sampling_down_factor",
+        ONDEMAND + "down_differential",
+    };
+
+    private static final String[] INTERACTIVE_NODES = {
+        INTERACTIVE + "timer_rate",
+        INTERACTIVE + "min_sample_time",
+        INTERACTIVE + "io_is_busy",
+        INTERACTIVE + "hispeed_freq",
+        INTERACTIVE + "above_hispeed_delay",
+    };
+
+    static final class Profile {
+        final String name;
+        final String[] ondemand;
+        final String[] interactive;
+
+        Profile(String name, String[] ondemand, String[] interactive) {
+            this.name = name;
+            this.ondemand = ondemand;
+            this.interactive = interactive;
+        }
+    }
+
+    static final Profile POWERSAVE = new Profile(PROFILE_POWERSAVE,
+            new String[] { "100000", "95", "0", "1", "10" },
+            new String[] { "50000", "40000", "0", "600000", "80000" });
+
+    static final Profile BALANCED = new Profile(PROFILE_BALANCED,
+            new String[] { "50000", "90", "0", "4", "10" },
+            new String[] { "30000", "90000", "0", "1008000", "30000" });
+
+    static final Profile PERFORMANCE = new Profile(PROFILE_PERFORMANCE,
+            new String[] { "30000", "70", "1", "8", "5" },
+            new String[] { "20000", "120000", "1", "1008000", "20000" });
+
+    static final Profile[] PROFILES = { POWERSAVE, BALANCED, PERFORMANCE };
+
+    private static CpuProfileEngine sInstance;
+
+    private final SysfsWriter mSysfs;
+    private final SysfsCache mCache;
+    private final PropertyWriter mProperties;
+    private String mWarnedGovernor;
+
+    public static synchronized CpuProfileEngine getInstance() {
+        if (sInstance == null) {
+            sInstance = new CpuProfileEngine(SysfsWriter.getInstance(), SysfsCache.getInstance(),
+                    PropertyWriter.getInstance());
+        }
+        return sInstance;
+    }
+
+    public CpuProfileEngine(SysfsWriter sysfs, SysfsCache cache, PropertyWriter properties) {
+        mSysfs = sysfs;
+        mCache = cache;
+        mProperties = properties;
+    }
+
+    static Profile getProfile(String name) {
+        for (Profile profile : PROFILES) {
+            if (profile.name.equals(name)) {
+                return profile;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Applies a profile to the running governor.
+     *
+     * @return one of the RESULT_ constants
+     */
+    public synchronized int apply(String name) {
+        Profile profile = getProfile(name);
+        if (profile == null) {
+            Log.w(TAG, "unknown cpu profile " + name);
+            return RESULT_DENIED;
+        }
+
+        String governor = mCache.get(GOVERNOR);
+        String[] nodes;
+        String[] values;
+        if ("ondemand".equals(governor)) {
+            nodes = ONDEMAND_NODES;
+            values = profile.ondemand;
+        } else if ("interactive".equals(governor)) {
+            nodes = INTERACTIVE_NODES;
+            values = profile.interactive;
+        } else {
+            if (governor == null || !governor.equals(mWarnedGovernor)) {
+                Log.w(TAG, "no cpu profiles for governor " + governor);
+                mWarnedGovernor = governor;
+            }
+            return RESULT_FAILED;
+        }
+        mWarnedGovernor = null;
+        // True only when the governor changed, so init is about to chown
+        boolean announced = mProperties.set(GOVERNOR_PROPERTY, governor);
+
+        ArrayList<String> written = new ArrayList<String>();
+        ArrayList<String> previous = new ArrayList<String>();
+        for (int i = 0; i < nodes.length; i++) {
+            String old = mCache.get(nodes[i]);
+            if (!values[i].equals(old)) {
+                if (!new File(nodes[i]).canWrite()) {
+                    if (announced) {
+                        return RESULT_FAILED;
+                    }
+                    Log.w(TAG, "cpu profile " + name + " not applied, " + nodes[i]
+                            + " is not writable");
+                    return RESULT_DENIED;
+                }
+                written.add(nodes[i]);
+                previous.add(old);
+            }
+        }
+        if (written.isEmpty()) {
+            return RESULT_APPLIED;
+        }
+        for (int i = 0; i < nodes.length; i++) {
+            if (written.contains(nodes[i])) {
+                mSysfs.write(nodes[i], values[i]);
+            }
+        }
+        mSysfs.flush();
+
+        String failed = null;
+        for (int i = 0; i < nodes.length; i++) {
+            mCache.invalidate(nodes[i]);
+            if (failed == null && !values[i].equals(mCache.get(nodes[i]))) {
+                failed = nodes[i];
+            }
+        }
+        if (failed != null) {
+            Log.w(TAG, "cpu profile " + name + " not applied, " + failed
+                    + " reads back " + mCache.get(failed) + "; restoring");
+            for (int i = 0; i < written.size(); i++) {
+                if (previous.get(i) != null) {
+                    mSysfs.write(written.get(i), previous.get(i));
+                }
+                mCache.invalidate(written.get(i));
+            }
+            mSysfs.flush();
+            return RESULT_FAILED;
+        }
+
+        Log.i(TAG, "cpu profile " + name + " applied to " + governor
+                + " (" + written.size() + " nodes written)");
+        return RESULT_APPLIED;
+    }
+}
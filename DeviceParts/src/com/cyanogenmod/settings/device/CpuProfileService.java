@@ -0,0 +1,190 @@
+package com.cyanogenmod.settings.device;
+
+import android.app.Service;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Keeps the selected cpu profile applied.
+ *
+ * Profiles are applied on a thread of the service's own and checked again
+ * every CHECK_MS, so they are re-applied when the governor changes, as it
+ * does when init switches to ondemand once boot completes. A profile that
+ * could not be applied, for instance because the governor has none, is
+ * retried after RETRY_MS, backing off to CHECK_MS. If the governor's nodes
+ * are not writable the checks stop until the profile is selected again or
+ * the screen turns on.
+ *
+ * For the "auto" profile the service also picks the profile. On the
+ * charger the performance profile is used. On battery the choice follows
+ * the one minute load average while the screen is on: balanced above
+ * LOAD_HIGH, powersave again once it drops below LOAD_LOW. With the screen
+ * off it is always powersave.
+ */
+public class CpuProfileService extends Service
+{
+    private static final String TAG = "DeviceParts";
+
+    private static final String EXTRA_PROFILE = "profile";
+
+    private static final String LOADAVG = "/proc/loadavg";
+
+    private static final long CHECK_MS = 30000;
+    private static final long RETRY_MS = 2000;
+    private static final float LOAD_HIGH = 2.0f;
+    private static final float LOAD_LOW = 1.0f;
+
+    private HandlerThread mThread;
+    private Handler mHandler;
+
+    // Used on the service thread only
+    private String mProfile = CpuProfileEngine.DEFAULT_PROFILE;
+    private long mRetryMs = RETRY_MS;
+    private boolean mDenied;
+    private boolean mCharging;
+    private boolean mScreenOn = true;
+    private boolean mBusy;
+
+    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            String action = intent.getAction();
+            if (Intent.ACTION_BATTERY_CHANGED.equals(action)) {
+                boolean charging = intent.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+                if (charging == mCharging) {
+                    return;
+                }
+                mCharging = charging;
+            } else if (Intent.ACTION_SCREEN_ON.equals(action)) {
+                mScreenOn = true;
+            } else if (Intent.ACTION_SCREEN_OFF.equals(action)) {
+                mScreenOn = false;
+            }
+            if (CpuProfileEngine.PROFILE_AUTO.equals(mProfile)
+                    || (mDenied && Intent.ACTION_SCREEN_ON.equals(action))) {
+                update();
+            }
+        }
+    };
+
+    private final Runnable mCheck = new Runnable() {
+        @Override
+        public void run() {
+            update();
+        }
+    };
+
+    /**
+     * Selects a profile, by name or "auto", and applies it in the
+     * background.
+     */
+    public static void start(Context context, String profile) {
+        context.startService(new Intent(context, CpuProfileService.class)
+                .putExtra(EXTRA_PROFILE, profile));
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mThread = new HandlerThread("CpuProfile", Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        IntentFilter filter = new IntentFilter(Intent.ACTION_BATTERY_CHANGED);
+        filter.addAction(Intent.ACTION_SCREEN_ON);
+        filter.addAction(Intent.ACTION_SCREEN_OFF);
+        registerReceiver(mReceiver, filter, null, mHandler);
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        String profile = intent != null ? intent.getStringExtra(EXTRA_PROFILE) : null;
+        if (profile == null || (!CpuProfileEngine.PROFILE_AUTO.equals(profile)
+                && CpuProfileEngine.getProfile(profile) == null)) {
+            Log.w(TAG, "unknown cpu profile " + profile + ", using "
+                    + CpuProfileEngine.DEFAULT_PROFILE);
+            profile = CpuProfileEngine.DEFAULT_PROFILE;
+        }
+        final String selected = profile;
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mProfile = selected;
+                mRetryMs = RETRY_MS;
+                update();
+            }
+        });
+        return START_REDELIVER_INTENT;
+    }
+
+    @Override
+    public void onDestroy() {
+        unregisterReceiver(mReceiver);
+        mHandler.removeCallbacksAndMessages(null);
+        mThread.quitSafely();
+        super.onDestroy();
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    private void update() {
+        mHandler.removeCallbacks(mCheck);
+
+        String profile = mProfile;
+        if (CpuProfileEngine.PROFILE_AUTO.equals(profile)) {
+            profile = pickProfile();
+        }
+
+        // Nodes already holding their value are not written again
+        int result = CpuProfileEngine.getInstance().apply(profile);
+        mDenied = result == CpuProfileEngine.RESULT_DENIED;
+        if (result == CpuProfileEngine.RESULT_APPLIED) {
+            mRetryMs = RETRY_MS;
+            mHandler.postDelayed(mCheck, CHECK_MS);
+        } else if (result == CpuProfileEngine.RESULT_FAILED) {
+            mHandler.postDelayed(mCheck, mRetryMs);
+            mRetryMs = Math.min(mRetryMs * 2, CHECK_MS);
+        }
+    }
+
+    private String pickProfile() {
+        if (mCharging) {
+            return CpuProfileEngine.PROFILE_PERFORMANCE;
+        }
+        if (!mScreenOn) {
+            mBusy = false;
+            return CpuProfileEngine.PROFILE_POWERSAVE;
+        }
+        float load = readLoad();
+        if (load > LOAD_HIGH) {
+            mBusy = true;
+        } else if (load < LOAD_LOW) {
+            mBusy = false;
+        }
+        return mBusy ? CpuProfileEngine.PROFILE_BALANCED : CpuProfileEngine.PROFILE_POWERSAVE;
+    }
+
+    private static float readLoad() {
+        String loadavg = SysfsCache.getInstance().get(LOADAVG);
+        if (loadavg == null) {
+            return 0;
+        }
+        int end = loadavg.indexOf(' ');
+        try {
+            return Float.parseFloat(end > 0 ? loadavg.substring(0, end) : loadavg);
+        } catch (NumberFormatException ex) {
+            Log.w(TAG, "unable to parse " + LOADAVG + ": " + loadavg);
+            return 0;
+        }
+    }
+}
@@ -6,8 +6,12 @@ import android.content.Intent;
 
 public class DevicePartsStartup extends BroadcastReceiver
 {
+    private static final int MAX_BOOT_STEPS = 16;
+
     @Override
     public void onReceive(final Context context, final Intent bootintent) {
-        DeviceSettings.onStartup(context);
+        BootPipeline pipeline = new BootPipeline(context, MAX_BOOT_STEPS);
+        DeviceSettings.addStartupSteps(pipeline);
+        pipeline.start(goAsync(), BootPipeline.DEFAULT_DEADLINE_MS);
     }
 }
@@ -2,25 +2,33 @@ package com.cyanogenmod.settings.device;
 
 import com.cyanogenmod.settings.device.R;
 
+import android.content.ContentResolver;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.preference.CheckBoxPreference;
+import android.preference.ListPreference;
 import android.preference.Preference;
+import android.preference.Preference.OnPreferenceChangeListener;
 import android.preference.Preference.OnPreferenceClickListener;
 import android.preference.PreferenceActivity;
 import android.preference.PreferenceManager;
 import android.preference.PreferenceScreen;
+import android.provider.Settings;
 
 public class DeviceSettings extends PreferenceActivity {
 
-    private static final String KEY_BUTTON_BACKLIGHT = "button_backlight";
-    private static final String SOFT_KEYS = "soft_keys";
+    static final String KEY_BUTTON_BACKLIGHT = "button_backlight";
+    static final String SOFT_KEYS = "soft_keys";
+    static final String KEY_BUTTON_BACKLIGHT_TIMEOUT = "button_backlight_timeout";
 
-    private static final String BUTTON_BACKLIGHT_FILE = "/sys/class/sec/sec_touchkey/brightness";
+    // PowerManagerService's default when the setting is unset
+    private static final int DEFAULT_BUTTON_TIMEOUT_MS = 5000;
 
     private CheckBoxPreference mButtonBacklight;
     private CheckBoxPreference mSoft_keys;
+    private ListPreference mCpuProfile;
+    private ListPreference mBacklightTimeout;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -34,59 +42,134 @@ public class DeviceSettings extends PreferenceActivity {
 	Preference pref = getPreferenceManager().findPreference(SOFT_KEYS);
 	screen.removePreference(pref);
 
+        mCpuProfile = (ListPreference) findPreference(CpuProfileEngine.KEY_CPU_PROFILE);
+        mCpuProfile.setSummary(mCpuProfile.getEntry());
+        mCpuProfile.setOnPreferenceChangeListener(new OnPreferenceChangeListener() {
+            @Override
+            public boolean onPreferenceChange(Preference preference, Object newValue) {
+                String profile = (String) newValue;
+                CpuProfileService.start(DeviceSettings.this, profile);
+                // The new value is only stored once we return
+                SharedPreferences prefs = getPreferenceManager().getSharedPreferences();
+                prefs.edit().putString(CpuProfileEngine.KEY_CPU_PROFILE, profile).apply();
+                updateSnapshot(prefs);
+                mCpuProfile.setSummary(mCpuProfile.getEntries()[
+                        mCpuProfile.findIndexOfValue(profile)]);
+                return true;
+            }
+        });
+
+        // The timeout is kept by the framework, which switches the keys
+        // through the lights HAL, so this preference only edits its setting
+        final ContentResolver resolver = getContentResolver();
+        mBacklightTimeout = (ListPreference) findPreference(KEY_BUTTON_BACKLIGHT_TIMEOUT);
+        mBacklightTimeout.setValue(Integer.toString(Settings.Secure.getInt(resolver,
+                Settings.Secure.BUTTON_BACKLIGHT_TIMEOUT, DEFAULT_BUTTON_TIMEOUT_MS) / 1000));
+        mBacklightTimeout.setSummary(mBacklightTimeout.getEntry());
+        mBacklightTimeout.setOnPreferenceChangeListener(new OnPreferenceChangeListener() {
+            @Override
+            public boolean onPreferenceChange(Preference preference, Object newValue) {
+                String timeout = (String) newValue;
+                Settings.Secure.putInt(resolver, Settings.Secure.BUTTON_BACKLIGHT_TIMEOUT,
+                        Integer.parseInt(timeout) * 1000);
+                mBacklightTimeout.setSummary(mBacklightTimeout.getEntries()[
+                        mBacklightTimeout.findIndexOfValue(timeout)]);
+                return true;
+            }
+        });
     }
 
     @Override
-    public boolean onPreferenceTreeClick(PreferenceScreen preferenceScreen, Preference preference) {
+    protected void onResume() {
+        super.onResume();
+        updateCurrentValues();
+    }
 
-        int value;
-        String key = preference.getKey();
-
-        if (key.equals(KEY_BUTTON_BACKLIGHT)) {
-            final CheckBoxPreference chkPref = (CheckBoxPreference) preference;
-            value = chkPref.isChecked() ? 1 : 0;
-            if (value == 1) {
-                Utils.setWritable(BUTTON_BACKLIGHT_FILE);
-                Utils.writeValue(BUTTON_BACKLIGHT_FILE, value);
-            } else {
-                Utils.writeValue(BUTTON_BACKLIGHT_FILE, value);
-                Utils.setNonWritable(BUTTON_BACKLIGHT_FILE);
+    private void updateCurrentValues() {
+        SysfsCache cache = SysfsCache.getInstance();
+        for (Tunable tunable : Tunables.ALL) {
+            if (tunable.target != Tunable.TARGET_SYSFS) {
+                continue;
             }
-        } else {
-            return super.onPreferenceTreeClick(preferenceScreen, preference);
+            final Preference pref = findPreference(tunable.key);
+            if (pref == null) {
+                continue;
+            }
+            setCurrentValue(pref, cache.peek(tunable.name));
+            cache.refreshAsync(tunable.name, new SysfsCache.Listener() {
+                @Override
+                public void onValue(String path, final String value) {
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            setCurrentValue(pref, value);
+                        }
+                    });
+                }
+            });
         }
+    }
 
-        if (key.equals(SOFT_KEYS)) {
-            final CheckBoxPreference chkPref = (CheckBoxPreference) preference;
-            value = chkPref.isChecked() ? 1 : 0;
-            if (value == 1) {
-                Utils.command("setprop qemu.hw.mainkeys 0");
-            } else {
-		Utils.command("setprop qemu.hw.mainkeys 1");
+    /**
+     * Rewrites the settings snapshot on the TunableEngine thread, since
+     * saving it syncs the file to storage.
+     */
+    private void updateSnapshot(final SharedPreferences prefs) {
+        final Context context = getApplicationContext();
+        TunableEngine.getInstance().execute(new Runnable() {
+            @Override
+            public void run() {
+                SettingsSnapshot.update(context, prefs);
             }
-        } else {
+        });
+    }
+
+    private void setCurrentValue(Preference pref, String value) {
+        if (value != null) {
+            pref.setSummary(getString(R.string.current_value, value));
+        }
+    }
+
+    @Override
+    public boolean onPreferenceTreeClick(PreferenceScreen preferenceScreen, Preference preference) {
+
+        final Tunable tunable = Tunables.get(preference.getKey());
+        if (tunable == null) {
             return super.onPreferenceTreeClick(preferenceScreen, preference);
         }
 
+        final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        TunableEngine.getInstance().execute(new Runnable() {
+            @Override
+            public void run() {
+                TunableEngine.getInstance().apply(prefs, tunable);
+                // The nodes written were invalidated, so this reads them back
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        updateCurrentValues();
+                    }
+                });
+            }
+        });
+        updateSnapshot(prefs);
         return true;
     }
 
-    public static void onStartup(Context context) {
-
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-
-        if (prefs.getBoolean(KEY_BUTTON_BACKLIGHT, true)) {
-            Utils.setWritable(BUTTON_BACKLIGHT_FILE);
-            Utils.writeValue(BUTTON_BACKLIGHT_FILE, 1);
-        } else {
-            Utils.writeValue(BUTTON_BACKLIGHT_FILE, 0);
-            Utils.setNonWritable(BUTTON_BACKLIGHT_FILE);
-        }
-        if (prefs.getBoolean(SOFT_KEYS, true)) {
-            Utils.command("setprop qemu.hw.mainkeys 0");
-        } else {
-            Utils.command("setprop qemu.hw.mainkeys 1");
-        }
+    public static void addStartupSteps(BootPipeline pipeline) {
+        pipeline.add(new BootPipeline.Step("tunables") {
+            @Override
+            public void run(Context context) {
+                SettingsSnapshot snapshot = SettingsSnapshot.get(context);
+                TunableEngine.getInstance().apply(Tunables.ALL, snapshot.getTunableValues());
+            }
+        });
+        pipeline.add(new BootPipeline.Step("cpu_profile") {
+            @Override
+            public void run(Context context) {
+                CpuProfileService.start(context, SettingsSnapshot.get(context).getCpuProfile());
+            }
+        });
     }
 
 }
@@ -0,0 +1,119 @@
+package com.cyanogenmod.settings.device;
+
+import android.os.SystemProperties;
+import android.util.Log;
+
+import java.util.ArrayList;
+
+/**
+ * Sets system properties in-process instead of forking setprop.
+ *
+ * Changes are collected in a {@link Batch} and applied together. A
+ * property is only written if its current value differs. The current
+ * value is read from the property area each time, which is a shared
+ * memory lookup, because init, setprop and the framework may change the
+ * same properties.
+ */
+public final class PropertyWriter
+{
+    private static final String TAG = "DeviceParts";
+
+    public interface Backend {
+        String get(String key);
+        void set(String key, String value);
+    }
+
+    /**
+     * Backend writing straight to the property service.
+     */
+    public static final class SystemPropertiesBackend implements Backend {
+        @Override
+        public String get(String key) {
+            return SystemProperties.get(key);
+        }
+
+        @Override
+        public void set(String key, String value) {
+            SystemProperties.set(key, value);
+        }
+    }
+
+    /**
+     * Property changes to be applied in one go.
+     */
+    public final class Batch {
+        private final ArrayList<String> mKeys = new ArrayList<String>();
+        private final ArrayList<String> mValues = new ArrayList<String>();
+
+        private Batch() {
+        }
+
+        public Batch put(String key, String value) {
+            int index = mKeys.indexOf(key);
+            if (index >= 0) {
+                mValues.set(index, value);
+            } else {
+                mKeys.add(key);
+                mValues.add(value);
+            }
+            return this;
+        }
+
+        /**
+         * @return the number of properties actually written
+         */
+        public int apply() {
+            return PropertyWriter.this.apply(mKeys, mValues);
+        }
+    }
+
+    private static PropertyWriter sInstance;
+
+    private final Backend mBackend;
+
+    public static synchronized PropertyWriter getInstance() {
+        if (sInstance == null) {
+            sInstance = new PropertyWriter(new SystemPropertiesBackend());
+        }
+        return sInstance;
+    }
+
+    public PropertyWriter(Backend backend) {
+        mBackend = backend;
+    }
+
+    public Batch edit() {
+        return new Batch();
+    }
+
+    public String get(String key) {
+        return mBackend.get(key);
+    }
+
+    /**
+     * Sets a single property, see {@link Batch#apply()}.
+     *
+     * @return true if the property was written
+     */
+    public boolean set(String key, String value) {
+        return edit().put(key, value).apply() > 0;
+    }
+
+    private int apply(ArrayList<String> keys, ArrayList<String> values) {
+        int written = 0;
+        for (int i = 0; i < keys.size(); i++) {
+            String key = keys.get(i);
+            String value = values.get(i);
+            if (value.equals(mBackend.get(key))) {
+                continue;
+            }
+            try {
+                mBackend.set(key, value);
+                written++;
+            } catch (RuntimeException ex) {
+                Log.w(TAG, "unable to set property " + key + ": " + ex);
+            }
+        }
+        return written;
+    }
+}
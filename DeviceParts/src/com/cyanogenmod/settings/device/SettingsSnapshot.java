@@ -0,0 +1,282 @@
+package com.cyanogenmod.settings.device;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * The target values of all settings, kept in a small binary file so that
+ * the boot path does not have to load and parse the preferences XML.
+ *
+ * Layout, big endian:
+ *
+ *   int  MAGIC
+ *   int  VERSION
+ *   int  record count
+ *   record count * { byte[KEY_BYTES] key, byte[VALUE_BYTES] value }
+ *   int  CRC32 of everything before it
+ *
+ * Keys and values are ASCII, padded with zeros. There is one record per
+ * entry of {@link Tunables#ALL}, in order, holding the value to write to
+ * its target, followed by one per entry of EXTRA_KEYS holding the
+ * preference itself. A file that does not match this layout is ignored
+ * and rebuilt from the preferences.
+ */
+public final class SettingsSnapshot
+{
+    private static final String TAG = "DeviceParts";
+
+    static final String FILE_NAME = "settings.snapshot";
+
+    private static final int MAGIC = 0x44505353; // "DPSS"
+    private static final int VERSION = 3;
+    private static final int KEY_BYTES = 32;
+    private static final int VALUE_BYTES = 32;
+    private static final int HEADER_BYTES = 12;
+    private static final int RECORD_BYTES = KEY_BYTES + VALUE_BYTES;
+
+    // String preferences needed at boot that are not tunables
+    private static final String[] EXTRA_KEYS = {
+        CpuProfileEngine.KEY_CPU_PROFILE,
+    };
+    private static final String[] EXTRA_DEFAULTS = {
+        CpuProfileEngine.DEFAULT_PROFILE,
+    };
+
+    private static SettingsSnapshot sInstance;
+
+    private final String[] mTunableValues;
+    private final String[] mExtras;
+
+    private SettingsSnapshot(String[] tunableValues, String[] extras) {
+        mTunableValues = tunableValues;
+        mExtras = extras;
+    }
+
+    /**
+     * Returns the snapshot, mapping the file on first use. If the file is
+     * missing or invalid the preferences are read instead and the file is
+     * written again.
+     */
+    public static synchronized SettingsSnapshot get(Context context) {
+        if (sInstance == null) {
+            File file = new File(context.getFilesDir(), FILE_NAME);
+            sInstance = load(file);
+            if (sInstance == null) {
+                sInstance = fromPreferences(PreferenceManager.getDefaultSharedPreferences(context));
+                sInstance.save(file);
+            }
+        }
+        return sInstance;
+    }
+
+    /**
+     * Rebuilds the snapshot after the preferences changed.
+     */
+    public static synchronized void update(Context context, SharedPreferences prefs) {
+        sInstance = fromPreferences(prefs);
+        sInstance.save(new File(context.getFilesDir(), FILE_NAME));
+    }
+
+    /**
+     * Returns the target values for {@link Tunables#ALL}, in order.
+     */
+    public String[] getTunableValues() {
+        return mTunableValues;
+    }
+
+    /**
+     * Returns the target value of one tunable.
+     */
+    public String getTunableValue(Tunable tunable) {
+        for (int i = 0; i < Tunables.ALL.length; i++) {
+            if (Tunables.ALL[i] == tunable) {
+                return mTunableValues[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns one of the string preferences kept besides the tunables.
+     */
+    public String getString(String key) {
+        for (int i = 0; i < EXTRA_KEYS.length; i++) {
+            if (EXTRA_KEYS[i].equals(key)) {
+                return mExtras[i];
+            }
+        }
+        return null;
+    }
+
+    public String getCpuProfile() {
+        return getString(CpuProfileEngine.KEY_CPU_PROFILE);
+    }
+
+    static SettingsSnapshot fromPreferences(SharedPreferences prefs) {
+        String[] values = new String[Tunables.ALL.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = Tunables.ALL[i].desiredValue(prefs);
+        }
+        String[] extras = new String[EXTRA_KEYS.length];
+        for (int i = 0; i < extras.length; i++) {
+            extras[i] = prefs.getString(EXTRA_KEYS[i], EXTRA_DEFAULTS[i]);
+        }
+        return new SettingsSnapshot(values, extras);
+    }
+
+    private static String keyOf(int record) {
+        return record < Tunables.ALL.length
+                ? Tunables.ALL[record].key : EXTRA_KEYS[record - Tunables.ALL.length];
+    }
+
+    static SettingsSnapshot load(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            FileChannel channel = raf.getChannel();
+            int count = Tunables.ALL.length + EXTRA_KEYS.length;
+            long size = HEADER_BYTES + count * RECORD_BYTES + 4;
+            if (channel.size() != size) {
+                Log.w(TAG, FILE_NAME + " has the wrong size, ignoring it");
+                return null;
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION
+                    || buffer.getInt() != count) {
+                Log.w(TAG, FILE_NAME + " is from another version, ignoring it");
+                return null;
+            }
+
+            // CRC32.update(ByteBuffer) is not available here, so feed the
+            // mapping byte by byte rather than copying it to the heap
+            int crcOffset = (int) size - 4;
+            CRC32 crc = new CRC32();
+            for (int i = 0; i < crcOffset; i++) {
+                crc.update(buffer.get(i));
+            }
+            if (buffer.getInt(crcOffset) != (int) crc.getValue()) {
+                Log.w(TAG, FILE_NAME + " is corrupt, ignoring it");
+                return null;
+            }
+
+            String[] values = new String[Tunables.ALL.length];
+            String[] extras = new String[EXTRA_KEYS.length];
+            for (int i = 0; i < count; i++) {
+                int offset = HEADER_BYTES + i * RECORD_BYTES;
+                if (!matches(buffer, offset, KEY_BYTES, keyOf(i))) {
+                    Log.w(TAG, FILE_NAME + " does not match the settings, ignoring it");
+                    return null;
+                }
+                String value = decode(buffer, offset + KEY_BYTES, VALUE_BYTES);
+                if (i < values.length) {
+                    values[i] = value;
+                } else {
+                    extras[i - values.length] = value;
+                }
+            }
+            return new SettingsSnapshot(values, extras);
+        } catch (IOException ex) {
+            Log.w(TAG, "unable to read " + file + ": " + ex);
+            return null;
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException ex) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    void save(File file) {
+        int count = mTunableValues.length + mExtras.length;
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + count * RECORD_BYTES + 4);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(count);
+        for (int i = 0; i < count; i++) {
+            encode(buffer, keyOf(i), KEY_BYTES);
+            encode(buffer, i < mTunableValues.length
+                    ? mTunableValues[i] : mExtras[i - mTunableValues.length], VALUE_BYTES);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putInt((int) crc.getValue());
+
+        // Write a new file and rename it over the old one, so a crash never
+        // leaves a half written snapshot behind
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            out.write(buffer.array());
+            out.getFD().sync();
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                Log.w(TAG, "unable to replace " + file);
+            }
+        } catch (IOException ex) {
+            Log.w(TAG, "unable to write " + file + ": " + ex);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ex) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private static void encode(ByteBuffer buffer, String value, int length) {
+        int n = value != null ? Math.min(value.length(), length) : 0;
+        for (int i = 0; i < length; i++) {
+            buffer.put(i < n ? (byte) value.charAt(i) : 0);
+        }
+    }
+
+    private static int lengthOf(ByteBuffer buffer, int offset, int length) {
+        int n = 0;
+        while (n < length && buffer.get(offset + n) != 0) {
+            n++;
+        }
+        return n;
+    }
+
+    private static boolean matches(ByteBuffer buffer, int offset, int length, String value) {
+        int n = lengthOf(buffer, offset, length);
+        if (n != Math.min(value.length(), length)) {
+            return false;
+        }
+        for (int i = 0; i < n; i++) {
+            if (buffer.get(offset + i) != (byte) value.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String decode(ByteBuffer buffer, int offset, int length) {
+        char[] chars = new char[lengthOf(buffer, offset, length)];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = (char) (buffer.get(offset + i) & 0xff);
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,249 @@
+package com.cyanogenmod.settings.device;
+
+import android.os.FileObserver;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Caches values read from sysfs nodes.
+ *
+ * Nodes are read through one reused direct buffer. A cached value stays
+ * valid until a change notification arrives for the node or, for nodes
+ * registered as not sending notifications, until the TTL expires.
+ * {@link #peek} never touches storage and {@link #refreshAsync} reads on a
+ * background thread, so callers on the UI thread need not block.
+ */
+public final class SysfsCache
+{
+    private static final String TAG = "DeviceParts";
+
+    public static final long DEFAULT_TTL_MS = 5000;
+
+    private static final int BUFFER_SIZE = 128;
+
+    public interface Listener {
+        void onValue(String path, String value);
+    }
+
+    private static SysfsCache sInstance;
+
+    private final File mRoot;
+    private final long mTtlMs;
+
+    private final HashMap<String, Entry> mEntries = new HashMap<String, Entry>();
+    private final ByteBuffer mBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final byte[] mBytes = new byte[BUFFER_SIZE];
+
+    private ExecutorService mExecutor;
+
+    private final class Entry extends FileObserver {
+        final String path;
+        final boolean notifies;
+        FileChannel channel;
+        String value;
+        long readTime;
+        boolean valid;
+
+        Entry(String path, boolean notifies) {
+            super(new File(mRoot, path).getPath(), FileObserver.MODIFY | FileObserver.CLOSE_WRITE);
+            this.path = path;
+            this.notifies = notifies;
+        }
+
+        @Override
+        public void onEvent(int event, String name) {
+            invalidate(path);
+        }
+    }
+
+    public static synchronized SysfsCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new SysfsCache(new File("/"), DEFAULT_TTL_MS);
+        }
+        return sInstance;
+    }
+
+    public SysfsCache(File root, long ttlMs) {
+        mRoot = root;
+        mTtlMs = ttlMs;
+    }
+
+    /**
+     * Declares whether a node reports changes through file notifications.
+     * Nodes that are never registered are treated as not notifying.
+     * Sysfs attributes do not raise inotify events when the kernel or
+     * another process changes their value, so leave them unregistered.
+     */
+    public synchronized void register(String path, boolean notifies) {
+        Entry entry = mEntries.get(path);
+        if (entry != null && entry.notifies == notifies) {
+            return;
+        }
+        if (entry != null) {
+            release(entry);
+        }
+        entry = new Entry(path, notifies);
+        if (notifies) {
+            entry.startWatching();
+        }
+        mEntries.put(path, entry);
+    }
+
+    /**
+     * Returns the value of a node, reading it only if the cached value is
+     * missing or stale.
+     *
+     * @return the value without trailing whitespace, or null if the node
+     * could not be read
+     */
+    public synchronized String get(String path) {
+        Entry entry = getEntry(path);
+        if (!isFresh(entry)) {
+            read(entry);
+        }
+        return entry.value;
+    }
+
+    public int getInt(String path, int defaultValue) {
+        String value = get(path);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException ex) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Returns the last value read from a node, fresh or not, without
+     * touching storage.
+     */
+    public synchronized String peek(String path) {
+        Entry entry = mEntries.get(path);
+        return entry != null ? entry.value : null;
+    }
+
+    /**
+     * Reads a node on a background thread and reports its value. The
+     * listener is called on that thread.
+     */
+    public void refreshAsync(final String path, final Listener listener) {
+        getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                listener.onValue(path, get(path));
+            }
+        });
+    }
+
+    public synchronized void invalidate(String path) {
+        Entry entry = mEntries.get(path);
+        if (entry != null) {
+            entry.valid = false;
+        }
+    }
+
+    public synchronized void invalidateAll() {
+        for (Entry entry : mEntries.values()) {
+            entry.valid = false;
+        }
+    }
+
+    private Entry getEntry(String path) {
+        Entry entry = mEntries.get(path);
+        if (entry == null) {
+            entry = new Entry(path, false);
+            mEntries.put(path, entry);
+        }
+        return entry;
+    }
+
+    private boolean isFresh(Entry entry) {
+        if (!entry.valid) {
+            return false;
+        }
+        return entry.notifies || SystemClock.elapsedRealtime() - entry.readTime < mTtlMs;
+    }
+
+    private void read(Entry entry) {
+        try {
+            if (entry.channel == null) {
+                entry.channel = new FileInputStream(new File(mRoot, entry.path)).getChannel();
+            }
+            mBuffer.clear();
+            int length = entry.channel.read(mBuffer, 0);
+            if (length < 0) {
+                length = 0;
+            }
+            mBuffer.flip();
+            mBuffer.get(mBytes, 0, length);
+            while (length > 0 && mBytes[length - 1] <= ' ') {
+                length--;
+            }
+            if (!matches(entry.value, length)) {
+                entry.value = new String(mBytes, 0, length);
+            }
+            entry.readTime = SystemClock.elapsedRealtime();
+            entry.valid = true;
+        } catch (IOException ex) {
+            Log.w(TAG, "unable to read " + entry.path + ": " + ex);
+            closeChannel(entry);
+            entry.value = null;
+            entry.valid = false;
+        }
+    }
+
+    private boolean matches(String value, int length) {
+        if (value == null || value.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (value.charAt(i) != mBytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void release(Entry entry) {
+        entry.stopWatching();
+        closeChannel(entry);
+    }
+
+    private static void closeChannel(Entry entry) {
+        if (entry.channel != null) {
+            try {
+                entry.channel.close();
+            } catch (IOException ex) {
+                // ignore
+            }
+            entry.channel = null;
+        }
+    }
+
+    private synchronized ExecutorService getExecutor() {
+        if (mExecutor == null) {
+            mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "SysfsCache");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return mExecutor;
+    }
+}
@@ -0,0 +1,286 @@
+package com.cyanogenmod.settings.device;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes values to sysfs nodes.
+ *
+ * Every node is opened once and its descriptor kept for later writes.
+ * Values are formatted into a single reused buffer, so a write does not
+ * allocate. Writes queued with {@link #write(String, int)} are merged per
+ * node: if the same node is written again before the coalescing window
+ * expires only the last value reaches the kernel.
+ *
+ * Paths are resolved against a root directory, which is "/" on the device
+ * and can be any directory of plain files elsewhere.
+ */
+public final class SysfsWriter
+{
+    private static final String TAG = "DeviceParts";
+
+    public static final long DEFAULT_COALESCE_MS = 50;
+
+    private static final int MAX_VALUE_LENGTH = 64;
+
+    private static SysfsWriter sInstance;
+
+    private final File mRoot;
+    private final long mCoalesceMs;
+
+    private final HashMap<String, Node> mNodes = new HashMap<String, Node>();
+    private final ArrayList<Node> mDirty = new ArrayList<Node>();
+
+    private final byte[] mBytes = new byte[MAX_VALUE_LENGTH];
+    private final ByteBuffer mBuffer = ByteBuffer.wrap(mBytes);
+
+    private ScheduledExecutorService mExecutor;
+    private boolean mFlushScheduled;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (SysfsWriter.this) {
+                mFlushScheduled = false;
+                flush();
+            }
+        }
+    };
+
+    private static final class Node {
+        final String path;
+        FileChannel channel;
+        boolean truncate;
+        boolean dirty;
+        int pendingInt;
+        String pendingString;
+
+        Node(String path) {
+            this.path = path;
+        }
+    }
+
+    public static synchronized SysfsWriter getInstance() {
+        if (sInstance == null) {
+            sInstance = new SysfsWriter(new File("/"), DEFAULT_COALESCE_MS);
+        }
+        return sInstance;
+    }
+
+    public SysfsWriter(File root, long coalesceMs) {
+        mRoot = root;
+        mCoalesceMs = coalesceMs;
+    }
+
+    /**
+     * Queues a write of an integer value. The value is written once the
+     * coalescing window expires or {@link #flush()} is called, whichever
+     * comes first.
+     */
+    public synchronized void write(String path, int value) {
+        Node node = markDirty(path);
+        node.pendingInt = value;
+        node.pendingString = null;
+    }
+
+    /**
+     * Queues a write of a string value, see {@link #write(String, int)}.
+     */
+    public synchronized void write(String path, String value) {
+        Node node = markDirty(path);
+        node.pendingString = value;
+    }
+
+    /**
+     * Writes an integer value immediately, dropping any queued value for
+     * the same node.
+     *
+     * @return true if the value reached the node
+     */
+    public synchronized boolean writeNow(String path, int value) {
+        Node node = getNode(path);
+        clearDirty(node);
+        return writeBuffer(node, formatInt(value));
+    }
+
+    /**
+     * Writes a string value immediately, dropping any queued value for
+     * the same node.
+     *
+     * @return true if the value reached the node
+     */
+    public synchronized boolean writeNow(String path, String value) {
+        Node node = getNode(path);
+        clearDirty(node);
+        return writeBuffer(node, formatString(value));
+    }
+
+    /**
+     * Writes all queued values now.
+     *
+     * @return the number of nodes that could not be written
+     */
+    public synchronized int flush() {
+        int failed = 0;
+        for (int i = 0; i < mDirty.size(); i++) {
+            Node node = mDirty.get(i);
+            node.dirty = false;
+            int length = node.pendingString != null
+                    ? formatString(node.pendingString) : formatInt(node.pendingInt);
+            node.pendingString = null;
+            if (!writeBuffer(node, length)) {
+                failed++;
+            }
+        }
+        mDirty.clear();
+        return failed;
+    }
+
+    /**
+     * Flushes queued values and closes every open node.
+     */
+    public synchronized void close() {
+        flush();
+        for (Node node : mNodes.values()) {
+            closeNode(node);
+        }
+        mNodes.clear();
+        if (mExecutor != null) {
+            mExecutor.shutdown();
+            mExecutor = null;
+        }
+        mFlushScheduled = false;
+    }
+
+    private Node getNode(String path) {
+        Node node = mNodes.get(path);
+        if (node == null) {
+            node = new Node(path);
+            mNodes.put(path, node);
+        }
+        return node;
+    }
+
+    private Node markDirty(String path) {
+        Node node = getNode(path);
+        if (!node.dirty) {
+            node.dirty = true;
+            mDirty.add(node);
+        }
+        if (!mFlushScheduled) {
+            mFlushScheduled = true;
+            getExecutor().schedule(mFlushRunnable, mCoalesceMs, TimeUnit.MILLISECONDS);
+        }
+        return node;
+    }
+
+    private void clearDirty(Node node) {
+        if (node.dirty) {
+            node.dirty = false;
+            node.pendingString = null;
+            mDirty.remove(node);
+        }
+    }
+
+    private ScheduledExecutorService getExecutor() {
+        if (mExecutor == null) {
+            mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "SysfsWriter");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return mExecutor;
+    }
+
+    private int formatInt(int value) {
+        int length = 0;
+        long v = value;
+        if (v < 0) {
+            mBytes[length++] = '-';
+            v = -v;
+        }
+        int start = length;
+        do {
+            mBytes[length++] = (byte) ('0' + (int) (v % 10));
+            v /= 10;
+        } while (v != 0);
+        for (int i = start, j = length - 1; i < j; i++, j--) {
+            byte b = mBytes[i];
+            mBytes[i] = mBytes[j];
+            mBytes[j] = b;
+        }
+        return length;
+    }
+
+    private int formatString(String value) {
+        int length = Math.min(value.length(), MAX_VALUE_LENGTH);
+        if (length < value.length()) {
+            Log.w(TAG, "value for sysfs node truncated to " + MAX_VALUE_LENGTH + " bytes");
+        }
+        for (int i = 0; i < length; i++) {
+            mBytes[i] = (byte) value.charAt(i);
+        }
+        return length;
+    }
+
+    private boolean writeBuffer(Node node, int length) {
+        try {
+            if (node.channel == null) {
+                File file = new File(mRoot, node.path);
+                node.channel = new FileOutputStream(file).getChannel();
+                // Sysfs and procfs attributes stat as regular files, so go by
+                // where the node lives
+                node.truncate = !isKernelNode(file);
+            }
+            mBuffer.clear();
+            mBuffer.limit(length);
+            long position = 0;
+            while (mBuffer.hasRemaining()) {
+                position += node.channel.write(mBuffer, position);
+            }
+            if (node.truncate) {
+                // Plain files keep stale trailing bytes otherwise
+                node.channel.truncate(length);
+            }
+            return true;
+        } catch (IOException ex) {
+            Log.w(TAG, "unable to write " + node.path + ": " + ex);
+        } catch (RuntimeException ex) {
+            Log.w(TAG, "exception while writing " + node.path + ": ", ex);
+        }
+        // Drop the descriptor so the node is reopened on the next write.
+        closeNode(node);
+        return false;
+    }
+
+    private static boolean isKernelNode(File file) {
+        String path = file.getAbsolutePath();
+        return path.startsWith("/sys/") || path.startsWith("/proc/");
+    }
+
+    private static void closeNode(Node node) {
+        if (node.channel != null) {
+            try {
+                node.channel.close();
+            } catch (IOException ex) {
+                Log.w(TAG, "IOException while closing " + node.path + ": ", ex);
+            }
+            node.channel = null;
+        }
+    }
+}
@@ -0,0 +1,371 @@
+package com.cyanogenmod.settings.device;
+
+import android.util.Log;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+ * Samples the battery, thermal zone and cpu frequency nodes into a fixed
+ * size ring of primitive records.
+ *
+ * Every node is opened once and read through one reused direct buffer,
+ * and values are parsed in place, so taking a sample allocates nothing.
+ * Text nodes such as the battery status are stored as the codes
+ * BatteryManager uses. Each record also holds the time the sample itself
+ * took, so the sampler's own cost shows up next to what it measures.
+ *
+ * Binary export layout, big endian:
+ *
+ *   int  MAGIC
+ *   int  VERSION
+ *   int  column count
+ *   column count * UTF column name
+ *   UTF  battery technology
+ *   int  record count
+ *   record count * { long time ms, int cost ns, int[column count] values }
+ *
+ * Values that could not be read are stored as MISSING.
+ */
+public final class TelemetrySampler
+{
+    private static final String TAG = "DeviceParts";
+
+    public static final int MISSING = Integer.MIN_VALUE;
+
+    private static final int MAGIC = 0x44505453; // "DPTS"
+    private static final int VERSION = 1;
+
+    private static final int BUFFER_SIZE = 64;
+
+    private static final String BATTERY = "/sys/class/power_supply/battery/";
+    private static final String THERMAL = "/sys/class/thermal";
+    private static final String CPU_FREQ = "/sys/devices/system/cpu/cpu0/cpufreq/scaling_cur_freq";
+
+    // BatteryManager.BATTERY_STATUS_* and BATTERY_HEALTH_*, as healthd maps them
+    private static final String[] STATUS_NAMES = {
+        "Charging", "Discharging", "Not charging", "Full",
+    };
+    private static final int[] STATUS_CODES = { 2, 3, 4, 5 };
+    private static final String[] HEALTH_NAMES = {
+        "Good", "Overheat", "Dead", "Over voltage", "Unspecified failure", "Cold",
+    };
+    private static final int[] HEALTH_CODES = { 2, 3, 4, 5, 6, 7 };
+    private static final int UNKNOWN = 1;
+
+    private static final class Node {
+        final String name;
+        final String path;
+        final byte[][] tokens;
+        final int[] codes;
+        FileChannel channel;
+        boolean failed;
+
+        Node(String name, String path, String[] names, int[] codes) {
+            this.name = name;
+            this.path = path;
+            this.codes = codes;
+            if (names != null) {
+                tokens = new byte[names.length][];
+                for (int i = 0; i < names.length; i++) {
+                    tokens[i] = names[i].getBytes();
+                }
+            } else {
+                tokens = null;
+            }
+        }
+    }
+
+    private final File mRoot;
+    private final Node[] mNodes;
+    private final String mTechnology;
+
+    private final ByteBuffer mBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final byte[] mBytes = new byte[BUFFER_SIZE];
+
+    // Ring of records; mValues holds mNodes.length ints per record
+    private final int mCapacity;
+    private final long[] mTimes;
+    private final int[] mCosts;
+    private final int[] mValues;
+    private int mHead;
+    private int mCount;
+
+    private long mTotal;
+    private long mTotalCostNs;
+    private int mMaxCostNs;
+
+    public TelemetrySampler(File root, int capacity) {
+        mRoot = root;
+        mCapacity = capacity;
+
+        ArrayList<Node> nodes = new ArrayList<Node>();
+        nodes.add(new Node("status", BATTERY + "status", STATUS_NAMES, STATUS_CODES));
+        nodes.add(new Node("health", BATTERY + "health", HEALTH_NAMES, HEALTH_CODES));
+        nodes.add(new Node("present", BATTERY + "present", null, null));
+        nodes.add(new Node("capacity", BATTERY + "capacity", null, null));
+        nodes.add(new Node("voltage_now", BATTERY + "voltage_now", null, null));
+        nodes.add(new Node("batt_temp", BATTERY + "batt_temp", null, null));
+        if (new File(root, BATTERY + "current_now").exists()) {
+            nodes.add(new Node("current_now", BATTERY + "current_now", null, null));
+        }
+        nodes.add(new Node("cpu0_freq", CPU_FREQ, null, null));
+        for (int zone = 0; ; zone++) {
+            String path = THERMAL + "/thermal_zone" + zone + "/temp";
+            if (!new File(root, path).exists()) {
+                break;
+            }
+            nodes.add(new Node("tz" + zone, path, null, null));
+        }
+        mNodes = nodes.toArray(new Node[nodes.size()]);
+
+        // Static for the life of the battery, so read once
+        mTechnology = readText(BATTERY + "technology");
+
+        mTimes = new long[capacity];
+        mCosts = new int[capacity];
+        mValues = new int[capacity * mNodes.length];
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    public int getColumnCount() {
+        return mNodes.length;
+    }
+
+    public String getColumnName(int column) {
+        return mNodes[column].name;
+    }
+
+    /**
+     * Takes one sample, overwriting the oldest record once the ring is full.
+     *
+     * @param time the sample time in ms, normally elapsedRealtime
+     */
+    public synchronized void sample(long time) {
+        long start = System.nanoTime();
+        int base = mHead * mNodes.length;
+        for (int i = 0; i < mNodes.length; i++) {
+            mValues[base + i] = read(mNodes[i]);
+        }
+        mTimes[mHead] = time;
+        int cost = (int) Math.min(System.nanoTime() - start, Integer.MAX_VALUE);
+        mCosts[mHead] = cost;
+
+        mHead = (mHead + 1) % mCapacity;
+        if (mCount < mCapacity) {
+            mCount++;
+        }
+        mTotal++;
+        mTotalCostNs += cost;
+        if (cost > mMaxCostNs) {
+            mMaxCostNs = cost;
+        }
+    }
+
+    public synchronized int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Returns the number of samples taken, including overwritten ones.
+     */
+    public synchronized long getTotal() {
+        return mTotal;
+    }
+
+    public synchronized long getTotalCostNs() {
+        return mTotalCostNs;
+    }
+
+    public synchronized int getMaxCostNs() {
+        return mMaxCostNs;
+    }
+
+    /**
+     * Returns a value of the n-th oldest record still held.
+     */
+    public synchronized int getValue(int record, int column) {
+        return mValues[index(record) * mNodes.length + column];
+    }
+
+    public synchronized long getTime(int record) {
+        return mTimes[index(record)];
+    }
+
+    public synchronized void clear() {
+        mHead = 0;
+        mCount = 0;
+    }
+
+    /**
+     * Closes all nodes. They are opened again by the next sample.
+     */
+    public synchronized void close() {
+        for (Node node : mNodes) {
+            closeChannel(node);
+            node.failed = false;
+        }
+    }
+
+    public synchronized void writeCsv(PrintWriter pw) {
+        pw.print("# technology=");
+        pw.println(mTechnology);
+        pw.print("time_ms,cost_ns");
+        for (Node node : mNodes) {
+            pw.print(',');
+            pw.print(node.name);
+        }
+        pw.println();
+        for (int r = 0; r < mCount; r++) {
+            int slot = index(r);
+            pw.print(mTimes[slot]);
+            pw.print(',');
+            pw.print(mCosts[slot]);
+            int base = slot * mNodes.length;
+            for (int i = 0; i < mNodes.length; i++) {
+                pw.print(',');
+                if (mValues[base + i] != MISSING) {
+                    pw.print(mValues[base + i]);
+                }
+            }
+            pw.println();
+        }
+        pw.flush();
+    }
+
+    public synchronized void writeBinary(OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        data.writeInt(mNodes.length);
+        for (Node node : mNodes) {
+            data.writeUTF(node.name);
+        }
+        data.writeUTF(mTechnology != null ? mTechnology : "");
+        data.writeInt(mCount);
+        for (int r = 0; r < mCount; r++) {
+            int slot = index(r);
+            data.writeLong(mTimes[slot]);
+            data.writeInt(mCosts[slot]);
+            int base = slot * mNodes.length;
+            for (int i = 0; i < mNodes.length; i++) {
+                data.writeInt(mValues[base + i]);
+            }
+        }
+        data.flush();
+    }
+
+    private int index(int record) {
+        if (record < 0 || record >= mCount) {
+            throw new IndexOutOfBoundsException("record " + record + " of " + mCount);
+        }
+        return (mHead - mCount + record + mCapacity) % mCapacity;
+    }
+
+    private int read(Node node) {
+        if (node.failed) {
+            return MISSING;
+        }
+        int length;
+        try {
+            if (node.channel == null) {
+                node.channel = new FileInputStream(new File(mRoot, node.path)).getChannel();
+            }
+            mBuffer.clear();
+            length = node.channel.read(mBuffer, 0);
+        } catch (IOException ex) {
+            // Do not retry, or a missing node would log on every sample
+            Log.w(TAG, "unable to read " + node.path + ": " + ex);
+            closeChannel(node);
+            node.failed = true;
+            return MISSING;
+        }
+        if (length <= 0) {
+            return MISSING;
+        }
+        mBuffer.flip();
+        mBuffer.get(mBytes, 0, length);
+        return node.tokens != null ? parseToken(node, length) : parseInt(length);
+    }
+
+    private String readText(String path) {
+        Node node = new Node(path, path, null, null);
+        try {
+            node.channel = new FileInputStream(new File(mRoot, path)).getChannel();
+            mBuffer.clear();
+            int length = Math.max(node.channel.read(mBuffer, 0), 0);
+            mBuffer.flip();
+            mBuffer.get(mBytes, 0, length);
+            while (length > 0 && mBytes[length - 1] <= ' ') {
+                length--;
+            }
+            return new String(mBytes, 0, length);
+        } catch (IOException ex) {
+            return null;
+        } finally {
+            closeChannel(node);
+        }
+    }
+
+    private int parseInt(int length) {
+        int i = 0;
+        boolean negative = false;
+        if (length > 0 && mBytes[0] == '-') {
+            negative = true;
+            i++;
+        }
+        int start = i;
+        long value = 0;
+        for (; i < length && mBytes[i] >= '0' && mBytes[i] <= '9'; i++) {
+            value = value * 10 + (mBytes[i] - '0');
+            if (value > Integer.MAX_VALUE) {
+                return MISSING;
+            }
+        }
+        if (i == start) {
+            return MISSING;
+        }
+        return (int) (negative ? -value : value);
+    }
+
+    private int parseToken(Node node, int length) {
+        while (length > 0 && mBytes[length - 1] <= ' ') {
+            length--;
+        }
+        for (int t = 0; t < node.tokens.length; t++) {
+            byte[] token = node.tokens[t];
+            if (token.length != length) {
+                continue;
+            }
+            int i = 0;
+            while (i < length && token[i] == mBytes[i]) {
+                i++;
+            }
+            if (i == length) {
+                return node.codes[t];
+            }
+        }
+        return UNKNOWN;
+    }
+
+    private static void closeChannel(Node node) {
+        if (node.channel != null) {
+            try {
+                node.channel.close();
+            } catch (IOException ex) {
+                // ignore
+            }
+            node.channel = null;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package com.cyanogenmod.settings.device;
+
+import android.app.Service;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**
+ * Runs a {@link TelemetrySampler} at a fixed rate, for judging what the
+ * power and governor settings do to battery drain and temperature.
+ *
+ * Started from a shell with
+ *
+ *   am startservice -n com.cyanogenmod.settings.device/.TelemetryService \
+ *       --ei interval_ms 1000 --ei capacity 3600
+ *
+ * and read back with dumpsys activity service .TelemetryService, which
+ * prints a summary, or the samples with --csv, or saves them in binary to
+ * the app's files dir with --save. No wake lock is held, so sampling
+ * pauses while the device sleeps rather than keeping it awake.
+ *
+ * Starting the service again while it runs changes the interval; the
+ * capacity is fixed until the service is stopped. Sampling is not
+ * restarted if the process dies.
+ *
+ * Samples are taken on a background priority thread. Besides the time of
+ * each sample kept by the sampler, the thread's cpu time is totalled so
+ * the overhead can be compared with the run time.
+ */
+public class TelemetryService extends Service
+{
+    private static final String TAG = "DeviceParts";
+
+    public static final String EXTRA_INTERVAL_MS = "interval_ms";
+    public static final String EXTRA_CAPACITY = "capacity";
+
+    private static final int DEFAULT_INTERVAL_MS = 1000;
+    private static final int MIN_INTERVAL_MS = 100;
+    private static final int DEFAULT_CAPACITY = 3600;
+    private static final int MAX_CAPACITY = 86400;
+
+    private static final String EXPORT_FILE = "telemetry.bin";
+
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private TelemetrySampler mSampler;
+
+    private volatile int mIntervalMs;
+    private long mStartTime;
+
+    // Written on the sampler thread only
+    private long mNextSample;
+    private volatile long mCpuMicros;
+
+    private final Runnable mSample = new Runnable() {
+        @Override
+        public void run() {
+            long cpu = SystemClock.currentThreadTimeMicro();
+            mSampler.sample(SystemClock.elapsedRealtime());
+            // Keep to the rate instead of drifting by the sample time
+            long now = SystemClock.uptimeMillis();
+            mNextSample += mIntervalMs;
+            if (mNextSample <= now) {
+                mNextSample = now + mIntervalMs;
+            }
+            mHandler.postAtTime(this, mNextSample);
+            mCpuMicros += SystemClock.currentThreadTimeMicro() - cpu;
+        }
+    };
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        int interval = DEFAULT_INTERVAL_MS;
+        int capacity = DEFAULT_CAPACITY;
+        if (intent != null) {
+            interval = intent.getIntExtra(EXTRA_INTERVAL_MS, interval);
+            capacity = intent.getIntExtra(EXTRA_CAPACITY, capacity);
+        }
+        interval = Math.max(interval, MIN_INTERVAL_MS);
+        capacity = Math.max(1, Math.min(capacity, MAX_CAPACITY));
+
+        if (mThread == null) {
+            mSampler = new TelemetrySampler(new File("/"), capacity);
+            mThread = new HandlerThread("Telemetry", Process.THREAD_PRIORITY_BACKGROUND);
+            mThread.start();
+            mHandler = new Handler(mThread.getLooper());
+            mStartTime = SystemClock.elapsedRealtime();
+            Log.i(TAG, "telemetry started, " + mSampler.getColumnCount() + " columns every "
+                    + interval + "ms, " + capacity + " samples kept");
+        } else if (intent != null && intent.hasExtra(EXTRA_CAPACITY)
+                && capacity != mSampler.getCapacity()) {
+            Log.w(TAG, "telemetry already keeps " + mSampler.getCapacity()
+                    + " samples, ignoring capacity " + capacity + " until it is stopped");
+        }
+        mIntervalMs = interval;
+        mHandler.removeCallbacks(mSample);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mNextSample = SystemClock.uptimeMillis();
+                mSample.run();
+            }
+        });
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        if (mThread != null) {
+            final TelemetrySampler sampler = mSampler;
+            mHandler.removeCallbacksAndMessages(null);
+            // Close on the sampler thread so a sample in progress cannot reopen nodes
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    sampler.close();
+                }
+            });
+            mThread.quitSafely();
+            mThread = null;
+            Log.i(TAG, "telemetry stopped after " + sampler.getTotal() + " samples");
+        }
+        super.onDestroy();
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        if (mSampler == null) {
+            pw.println("telemetry not running");
+            return;
+        }
+        for (String arg : args) {
+            if ("--csv".equals(arg)) {
+                mSampler.writeCsv(pw);
+                return;
+            }
+            if ("--save".equals(arg)) {
+                save(pw);
+                return;
+            }
+        }
+
+        long total = mSampler.getTotal();
+        long runMs = SystemClock.elapsedRealtime() - mStartTime;
+        pw.println("Telemetry:");
+        pw.println("  interval: " + mIntervalMs + "ms");
+        pw.print("  columns:");
+        for (int i = 0; i < mSampler.getColumnCount(); i++) {
+            pw.print(" " + mSampler.getColumnName(i));
+        }
+        pw.println();
+        pw.println("  samples: " + total + " taken, " + mSampler.getCount() + " held");
+        if (total > 0) {
+            pw.println("  sample time: avg " + mSampler.getTotalCostNs() / total / 1000
+                    + "us, max " + mSampler.getMaxCostNs() / 1000 + "us");
+        }
+        long cpuMicros = mCpuMicros;
+        pw.println("  cpu: " + cpuMicros / 1000 + "ms in " + runMs / 1000 + "s"
+                + (runMs > 0 ? String.format(" (%.3f%%)", cpuMicros / 10.0 / runMs) : ""));
+    }
+
+    private void save(PrintWriter pw) {
+        File file = new File(getFilesDir(), EXPORT_FILE);
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(file);
+            mSampler.writeBinary(out);
+            pw.println("saved " + mSampler.getCount() + " samples to " + file);
+        } catch (IOException ex) {
+            pw.println("unable to write " + file + ": " + ex);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ex) {
+                    // ignore
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.cyanogenmod.settings.device;
+
+import android.content.SharedPreferences;
+
+/**
+ * A device setting backed by a sysfs node or a system property.
+ *
+ * The preference value stored under {@link #key} is turned into the
+ * string written to the target by the tunable's {@link Codec}.
+ */
+public final class Tunable
+{
+    public static final int TARGET_SYSFS = 0;
+    public static final int TARGET_PROPERTY = 1;
+
+    public interface Codec {
+        String encode(SharedPreferences prefs, String key, Object defaultValue);
+    }
+
+    /**
+     * Maps a boolean preference to one of two target values.
+     */
+    public static Codec bool(final String on, final String off) {
+        return new Codec() {
+            @Override
+            public String encode(SharedPreferences prefs, String key, Object defaultValue) {
+                return prefs.getBoolean(key, (Boolean) defaultValue) ? on : off;
+            }
+        };
+    }
+
+    /**
+     * Passes a string preference, such as a ListPreference value, through.
+     */
+    public static Codec string() {
+        return new Codec() {
+            @Override
+            public String encode(SharedPreferences prefs, String key, Object defaultValue) {
+                return prefs.getString(key, (String) defaultValue);
+            }
+        };
+    }
+
+    public final String key;
+    public final int target;
+    public final String name;
+    public final Codec codec;
+    public final Object defaultValue;
+    /** Sysfs value after which the node is made read-only, or null */
+    public final String lockValue;
+
+    private Tunable(String key, int target, String name, Codec codec, Object defaultValue,
+            String lockValue) {
+        this.key = key;
+        this.target = target;
+        this.name = name;
+        this.codec = codec;
+        this.defaultValue = defaultValue;
+        this.lockValue = lockValue;
+    }
+
+    public static Tunable sysfs(String key, String path, Codec codec, Object defaultValue) {
+        return new Tunable(key, TARGET_SYSFS, path, codec, defaultValue, null);
+    }
+
+    /**
+     * Like {@link #sysfs}, but the node is made read-only while it holds
+     * lockValue so that nothing else can override it.
+     */
+    public static Tunable lockedSysfs(String key, String path, Codec codec, Object defaultValue,
+            String lockValue) {
+        return new Tunable(key, TARGET_SYSFS, path, codec, defaultValue, lockValue);
+    }
+
+    public static Tunable property(String key, String property, Codec codec,
+            Object defaultValue) {
+        return new Tunable(key, TARGET_PROPERTY, property, codec, defaultValue, null);
+    }
+
+    public String desiredValue(SharedPreferences prefs) {
+        return codec.encode(prefs, key, defaultValue);
+    }
+}
@@ -0,0 +1,165 @@
+package com.cyanogenmod.settings.device;
+
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Applies {@link Tunable}s to the device.
+ *
+ * The current state of every target is read once per apply, through
+ * {@link SysfsCache} for sysfs nodes, and compared
+ * with the value the preferences ask for. Only tunables that differ are
+ * written: sysfs nodes through one {@link SysfsWriter} flush and
+ * properties through one {@link PropertyWriter.Batch}. Sysfs values are
+ * taken from the cache as long as they are fresh; the nodes written are
+ * invalidated afterwards.
+ */
+public final class TunableEngine
+{
+    private static final String TAG = "DeviceParts";
+
+    private static TunableEngine sInstance;
+
+    private final File mRoot;
+    private final SysfsWriter mSysfs;
+    private final SysfsCache mCache;
+    private final PropertyWriter mProperties;
+
+    private ExecutorService mExecutor;
+
+    public static synchronized TunableEngine getInstance() {
+        if (sInstance == null) {
+            sInstance = new TunableEngine(new File("/"), SysfsWriter.getInstance(),
+                    SysfsCache.getInstance(), PropertyWriter.getInstance());
+        }
+        return sInstance;
+    }
+
+    public TunableEngine(File root, SysfsWriter sysfs, SysfsCache cache,
+            PropertyWriter properties) {
+        mRoot = root;
+        mSysfs = sysfs;
+        mCache = cache;
+        mProperties = properties;
+    }
+
+    /**
+     * Runs a task on the engine's own thread. Tasks run one at a time in
+     * the order they were queued.
+     */
+    public void execute(Runnable task) {
+        getExecutor().execute(task);
+    }
+
+    public int apply(SharedPreferences prefs, Tunable tunable) {
+        return apply(prefs, new Tunable[] { tunable });
+    }
+
+    /**
+     * Brings the given tunables in line with the preferences.
+     *
+     * @return the number of tunables that were changed
+     */
+    public int apply(SharedPreferences prefs, Tunable[] tunables) {
+        String[] desired = new String[tunables.length];
+        for (int i = 0; i < tunables.length; i++) {
+            desired[i] = tunables[i].desiredValue(prefs);
+        }
+        return apply(tunables, desired);
+    }
+
+    /**
+     * Brings the given tunables to the given target values, such as those
+     * kept in a {@link SettingsSnapshot}.
+     *
+     * @return the number of tunables that were changed
+     */
+    public synchronized int apply(Tunable[] tunables, String[] desired) {
+        ArrayList<Tunable> changed = new ArrayList<Tunable>();
+        ArrayList<String> values = new ArrayList<String>();
+
+        for (int i = 0; i < tunables.length; i++) {
+            if (!isApplied(tunables[i], desired[i])) {
+                changed.add(tunables[i]);
+                values.add(desired[i]);
+            }
+        }
+        if (changed.isEmpty()) {
+            return 0;
+        }
+
+        PropertyWriter.Batch batch = mProperties.edit();
+        boolean sysfsQueued = false;
+        for (int i = 0; i < changed.size(); i++) {
+            Tunable tunable = changed.get(i);
+            String value = values.get(i);
+            if (tunable.target == Tunable.TARGET_PROPERTY) {
+                batch.put(tunable.name, value);
+            } else {
+                if (tunable.lockValue != null) {
+                    setWritable(tunable.name, true);
+                }
+                mSysfs.write(tunable.name, value);
+                sysfsQueued = true;
+            }
+        }
+        if (sysfsQueued) {
+            mSysfs.flush();
+        }
+        batch.apply();
+
+        for (int i = 0; i < changed.size(); i++) {
+            Tunable tunable = changed.get(i);
+            if (tunable.target != Tunable.TARGET_SYSFS) {
+                continue;
+            }
+            mCache.invalidate(tunable.name);
+            if (tunable.lockValue != null && tunable.lockValue.equals(values.get(i))) {
+                setWritable(tunable.name, false);
+            }
+        }
+        return changed.size();
+    }
+
+    private boolean isApplied(Tunable tunable, String desired) {
+        if (tunable.target == Tunable.TARGET_PROPERTY) {
+            return desired.equals(mProperties.get(tunable.name));
+        }
+        if (!desired.equals(mCache.get(tunable.name))) {
+            return false;
+        }
+        if (tunable.lockValue != null) {
+            boolean locked = !new File(mRoot, tunable.name).canWrite();
+            return locked == tunable.lockValue.equals(desired);
+        }
+        return true;
+    }
+
+    private void setWritable(String path, boolean writable) {
+        try {
+            new File(mRoot, path).setWritable(writable);
+        } catch (SecurityException ex) {
+            Log.w(TAG, "unable to set permission for file " + path + ": " + ex);
+        }
+    }
+
+    private synchronized ExecutorService getExecutor() {
+        if (mExecutor == null) {
+            mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "TunableEngine");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return mExecutor;
+    }
+}
@@ -0,0 +1,32 @@
+package com.cyanogenmod.settings.device;
+
+/**
+ * All settings DeviceParts applies to the device.
+ */
+public final class Tunables
+{
+    public static final Tunable BUTTON_BACKLIGHT = Tunable.lockedSysfs(
+            DeviceSettings.KEY_BUTTON_BACKLIGHT, "/sys/class/sec/sec_touchkey/brightness",
+            Tunable.bool("1", "0"), true, "0");
+
+    public static final Tunable SOFT_KEYS = Tunable.property(
+            DeviceSettings.SOFT_KEYS, "qemu.hw.mainkeys",
+            Tunable.bool("0", "1"), true);
+
+    public static final Tunable[] ALL = {
+        BUTTON_BACKLIGHT,
+        SOFT_KEYS,
+    };
+
+    private Tunables() {
+    }
+
+    public static Tunable get(String key) {
+        for (Tunable tunable : ALL) {
+            if (tunable.key.equals(key)) {
+                return tunable;
+            }
+        }
+        return null;
+    }
+}
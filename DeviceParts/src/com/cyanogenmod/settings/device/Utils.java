@@ -3,11 +3,8 @@ package com.cyanogenmod.settings.device;
 import android.util.Log;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
-import java.io.SyncFailedException;
 import java.lang.SecurityException;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
@@ -17,32 +14,7 @@ public class Utils
     private static final String TAG = "DeviceParts";
 
     public static void writeValue(String parameter, int value) {
-        FileOutputStream fos = null;
-        try {
-            fos = new FileOutputStream(new File(parameter));
-            fos.write(String.valueOf(value).getBytes());
-            fos.flush();
-            // fos.getFD().sync();
-        } catch (FileNotFoundException ex) {
-            Log.w(TAG, "file " + parameter + " not found: " + ex);
-        } catch (SyncFailedException ex) {
-            Log.w(TAG, "file " + parameter + " sync failed: " + ex);
-        } catch (IOException ex) {
-            Log.w(TAG, "IOException trying to sync " + parameter + ": " + ex);
-        } catch (RuntimeException ex) {
-            Log.w(TAG, "exception while syncing file: ", ex);
-        } finally {
-            if (fos != null) {
-                try {
-                    Log.w(TAG, "file " + parameter + ": " + value);
-                    fos.close();
-                } catch (IOException ex) {
-                    Log.w(TAG, "IOException while closing synced file: ", ex);
-                } catch (RuntimeException ex) {
-                    Log.w(TAG, "exception while closing file: ", ex);
-                }
-            }
-        }
+        SysfsWriter.getInstance().writeNow(parameter, value);
     }
 
     public static void setWritable(String parameter) {
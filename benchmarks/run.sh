@@ -0,0 +1,31 @@
+#!/bin/bash
+#
+# Builds and runs the host benchmarks for the SysfsWriter, SysfsCache and
+# IccCardStatusDecoder hot paths. Needs only a JDK; the Android classes
+# these use are replaced by the stand-ins under stubs/.
+#
+# With --replay, a trace pulled from /data/misc/radio is replayed through
+# the decoder instead.
+#
+# Usage: benchmarks/run.sh [scratch dir]
+#        benchmarks/run.sh --replay <trace> [--no-reuse] [--skip-pin-puk-count]
+#
+
+set -e
+
+HERE=$(cd "$(dirname "$0")" && pwd)
+TOP=$(dirname "$HERE")
+OUT=$(mktemp -d)
+trap 'rm -rf "$OUT"' EXIT
+
+SOURCES="$TOP/DeviceParts/src/com/cyanogenmod/settings/device/SysfsWriter.java
+$TOP/DeviceParts/src/com/cyanogenmod/settings/device/SysfsCache.java
+$TOP/ril/IccCardStatusDecoder.java
+$TOP/ril/JsrRilTrace.java"
+
+javac -Xlint:all -d "$OUT/classes" $SOURCES $(find "$HERE/stubs" "$HERE/src" -name '*.java')
+if [ "$1" = "--replay" ]; then
+    java -cp "$OUT/classes" bench.Main "$@"
+else
+    java -cp "$OUT/classes" bench.Main "${1:-$OUT/sysfs}"
+fi
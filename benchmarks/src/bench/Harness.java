@@ -0,0 +1,90 @@
+package bench;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Times small operations on the host and reports their cost per call.
+ *
+ * Each benchmark is run for WARMUP_ROUNDS rounds that are thrown away,
+ * so the JIT has compiled it, and then for ROUNDS rounds of which the
+ * median is reported. Besides the time per call, the bytes allocated per
+ * call by the benchmark thread are reported where the JVM can count them
+ * (HotSpot and OpenJDK can), which shows whether a hot path allocates.
+ */
+public final class Harness {
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int ROUNDS = 9;
+
+    public interface Op {
+        void run(int i) throws Exception;
+    }
+
+    private final com.sun.management.ThreadMXBean mThreads;
+    private Object mSink;
+    private int mIntSink;
+
+    public Harness() {
+        com.sun.management.ThreadMXBean threads = null;
+        try {
+            threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            if (!threads.isThreadAllocatedMemorySupported()) {
+                threads = null;
+            } else {
+                threads.setThreadAllocatedMemoryEnabled(true);
+            }
+        } catch (ClassCastException ex) {
+            // Not a HotSpot based JVM
+        } catch (UnsupportedOperationException ex) {
+            threads = null;
+        }
+        mThreads = threads;
+        System.out.println(String.format("%-44s %12s %12s %10s",
+                "benchmark", "ns/op", "ops/s", "B/op"));
+    }
+
+    /**
+     * Keeps a result reachable so the JIT cannot drop the work producing it.
+     */
+    public void consume(Object result) {
+        mSink = result;
+    }
+
+    public void consume(int result) {
+        mIntSink = result;
+    }
+
+    public void measure(String name, int iterations, Op op) throws Exception {
+        for (int round = 0; round < WARMUP_ROUNDS; round++) {
+            runRound(iterations, op);
+        }
+
+        long[] nanos = new long[ROUNDS];
+        long[] bytes = new long[ROUNDS];
+        long thread = Thread.currentThread().getId();
+        for (int round = 0; round < ROUNDS; round++) {
+            long allocated = allocatedBytes(thread);
+            nanos[round] = runRound(iterations, op);
+            bytes[round] = allocatedBytes(thread) - allocated;
+        }
+        java.util.Arrays.sort(nanos);
+        java.util.Arrays.sort(bytes);
+
+        double nsPerOp = (double) nanos[ROUNDS / 2] / iterations;
+        String bytesPerOp = mThreads != null
+                ? String.format("%.1f", (double) bytes[ROUNDS / 2] / iterations) : "n/a";
+        System.out.println(String.format("%-44s %12.1f %12.0f %10s",
+                name, nsPerOp, 1e9 / nsPerOp, bytesPerOp));
+    }
+
+    private long runRound(int iterations, Op op) throws Exception {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            op.run(i);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private long allocatedBytes(long thread) {
+        return mThreads != null ? mThreads.getThreadAllocatedBytes(thread) : 0;
+    }
+}
@@ -0,0 +1,65 @@
+package bench;
+
+import com.android.internal.telephony.IccCardStatusBenchmarks;
+import com.android.internal.telephony.TraceReplay;
+import com.cyanogenmod.settings.device.SysfsBenchmarks;
+
+import java.io.File;
+
+/**
+ * Runs the host benchmarks, see run.sh.
+ *
+ * The only argument is a scratch directory for the files standing in for
+ * sysfs nodes. It defaults to a new directory under java.io.tmpdir.
+ *
+ * With --replay <trace> a trace recorded by JSRQualcommRIL is replayed
+ * instead, see TraceReplay. --no-reuse and --skip-pin-puk-count set up the
+ * decoder as the matching RIL properties and features would.
+ */
+public final class Main {
+    private Main() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("--replay")) {
+            replay(args);
+            return;
+        }
+
+        File scratch;
+        if (args.length > 0) {
+            scratch = new File(args[0]);
+        } else {
+            scratch = File.createTempFile("sysfs", "");
+            scratch.delete();
+        }
+        if (!scratch.isDirectory() && !scratch.mkdirs()) {
+            throw new IllegalArgumentException("unable to create " + scratch);
+        }
+
+        Harness harness = new Harness();
+        SysfsBenchmarks.run(harness, scratch);
+        IccCardStatusBenchmarks.run(harness);
+    }
+
+    private static void replay(String[] args) throws Exception {
+        File trace = null;
+        boolean reuse = true;
+        boolean skipPinPukCount = false;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("--no-reuse")) {
+                reuse = false;
+            } else if (args[i].equals("--skip-pin-puk-count")) {
+                skipPinPukCount = true;
+            } else if (trace == null) {
+                trace = new File(args[i]);
+            } else {
+                throw new IllegalArgumentException("unexpected argument " + args[i]);
+            }
+        }
+        if (trace == null) {
+            throw new IllegalArgumentException("--replay needs a trace file");
+        }
+        TraceReplay.run(trace, reuse, skipPinPukCount);
+    }
+}
@@ -0,0 +1,93 @@
+package com.android.internal.telephony;
+
+import android.os.Parcel;
+
+import bench.Harness;
+
+/**
+ * Benchmarks {@link IccCardStatusDecoder} on a SIM status response as the
+ * modem sends it for a USIM card with an ISIM application.
+ *
+ * "reuse" runs the path JSRQualcommRIL takes with reuse enabled: the raw
+ * comparison first, then a decode into a new status. Two responses that
+ * differ in one application state alternate, so every call decodes.
+ * "unchanged" repeats one response, so every call stops after the raw
+ * comparison.
+ */
+public final class IccCardStatusBenchmarks {
+    private static final int ITERATIONS = 200000;
+
+    private static final int APPSTATE_PIN = 2;
+    private static final int APPSTATE_READY = 5;
+
+    private IccCardStatusBenchmarks() {
+    }
+
+    public static void run(final Harness harness) throws Exception {
+        final Parcel ready = buildResponse(APPSTATE_READY);
+        final Parcel pin = buildResponse(APPSTATE_PIN);
+
+        final IccCardStatusDecoder plain = new IccCardStatusDecoder(false, false);
+        harness.measure("IccCardStatusDecoder.decode", ITERATIONS, new Harness.Op() {
+            @Override
+            public void run(int i) {
+                ready.setDataPosition(0);
+                harness.consume(plain.decode(ready));
+            }
+        });
+
+        final IccCardStatusDecoder reuse = new IccCardStatusDecoder(true, false);
+        harness.measure("IccCardStatusDecoder reuse, changed", ITERATIONS, new Harness.Op() {
+            @Override
+            public void run(int i) {
+                Parcel p = (i & 1) == 0 ? ready : pin;
+                p.setDataPosition(0);
+                if (!reuse.matchesLast(p)) {
+                    reuse.decode(p);
+                }
+                harness.consume(reuse.getLast());
+            }
+        });
+
+        final IccCardStatusDecoder unchanged = new IccCardStatusDecoder(true, false);
+        harness.measure("IccCardStatusDecoder reuse, unchanged", ITERATIONS, new Harness.Op() {
+            @Override
+            public void run(int i) {
+                ready.setDataPosition(0);
+                if (!unchanged.matchesLast(ready)) {
+                    unchanged.decode(ready);
+                }
+                harness.consume(unchanged.getLast());
+            }
+        });
+    }
+
+    private static Parcel buildResponse(int usimState) {
+        Parcel p = Parcel.obtain();
+        p.writeInt(1); // card_state: PRESENT
+        p.writeInt(0); // universal_pin_state
+        p.writeInt(0); // gsm_umts_subscription_app_index
+        p.writeInt(-1); // cdma_subscription_app_index
+        p.writeInt(1); // ims_subscription_app_index
+        p.writeInt(2); // num_applications
+        writeApplication(p, 2, usimState, "a0000000871002ff86ff0389ffffffff", "USIM");
+        writeApplication(p, 5, APPSTATE_READY, "a0000000871004ff86ff0389ffffffff", "ISIM");
+        return p;
+    }
+
+    private static void writeApplication(Parcel p, int type, int state, String aid,
+            String label) {
+        p.writeInt(type);
+        p.writeInt(state);
+        p.writeInt(2); // perso_substate: READY
+        p.writeString(aid);
+        p.writeString(label);
+        p.writeInt(0); // pin1_replaced
+        p.writeInt(3); // pin1: DISABLED
+        p.writeInt(3); // remaining_count_pin1
+        p.writeInt(10); // remaining_count_puk1
+        p.writeInt(2); // pin2: ENABLED_VERIFIED
+        p.writeInt(3); // remaining_count_pin2
+        p.writeInt(10); // remaining_count_puk2
+    }
+}
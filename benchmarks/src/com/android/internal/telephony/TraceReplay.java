@@ -0,0 +1,91 @@
+package com.android.internal.telephony;
+
+import android.os.Parcel;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Replays a trace recorded by JSRQualcommRIL through {@link JsrRilTrace}
+ * and the real {@link IccCardStatusDecoder}.
+ *
+ * SIM status responses take the path responseIccCardStatus takes: the
+ * raw comparison first, then a decode into a new status. Only that path
+ * is timed. The unsolicited handlers and the solicited path call into the
+ * framework RIL and cannot run here, so those records are only counted,
+ * unsolicited ones per response id.
+ */
+public final class TraceReplay implements JsrRilTrace.Sink {
+    private final IccCardStatusDecoder mDecoder;
+
+    private long[] mIccNanos = new long[64];
+    private int mIccCount;
+    private int mIccUnchanged;
+    private int mSolicited;
+    private final TreeMap<Integer, int[]> mUnsolicited = new TreeMap<Integer, int[]>();
+
+    public TraceReplay(boolean reuse, boolean skipPinPukCount) {
+        mDecoder = new IccCardStatusDecoder(reuse, skipPinPukCount);
+    }
+
+    /**
+     * Replays a trace as fast as possible and prints what was seen.
+     */
+    public static void run(File trace, boolean reuse, boolean skipPinPukCount)
+            throws IOException {
+        TraceReplay replay = new TraceReplay(reuse, skipPinPukCount);
+        int records = JsrRilTrace.replay(trace, replay, 0);
+        System.out.println(trace + ": " + records + " records");
+        replay.print();
+    }
+
+    @Override
+    public void onSolicited(Parcel p) {
+        mSolicited++;
+    }
+
+    @Override
+    public void onUnsolicited(Parcel p) {
+        int response = p.readInt();
+        int[] count = mUnsolicited.get(response);
+        if (count == null) {
+            count = new int[1];
+            mUnsolicited.put(response, count);
+        }
+        count[0]++;
+    }
+
+    @Override
+    public void onIccCardStatus(Parcel p) {
+        long start = System.nanoTime();
+        if (mDecoder.matchesLast(p)) {
+            mIccUnchanged++;
+        } else {
+            mDecoder.decode(p);
+        }
+        long elapsed = System.nanoTime() - start;
+        if (mIccCount == mIccNanos.length) {
+            mIccNanos = Arrays.copyOf(mIccNanos, mIccCount * 2);
+        }
+        mIccNanos[mIccCount++] = elapsed;
+    }
+
+    private void print() {
+        System.out.println("  solicited: " + mSolicited);
+        for (Map.Entry<Integer, int[]> entry : mUnsolicited.entrySet()) {
+            System.out.println("  unsolicited " + entry.getKey() + ": " + entry.getValue()[0]);
+        }
+        if (mIccCount == 0) {
+            System.out.println("  sim status: none");
+            return;
+        }
+        long[] sorted = Arrays.copyOf(mIccNanos, mIccCount);
+        Arrays.sort(sorted);
+        System.out.println(String.format("  sim status: %d (%d unchanged), median %d ns,"
+                + " max %d ns", mIccCount, mIccUnchanged, sorted[mIccCount / 2],
+                sorted[mIccCount - 1]));
+    }
+}
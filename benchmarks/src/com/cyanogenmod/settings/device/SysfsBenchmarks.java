@@ -0,0 +1,97 @@
+package com.cyanogenmod.settings.device;
+
+import bench.Harness;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Benchmarks the write and read paths of {@link SysfsWriter} and
+ * {@link SysfsCache}.
+ *
+ * The nodes are plain files in a scratch directory. Writes to plain files
+ * are also truncated, which sysfs writes are not, so the write numbers
+ * come out somewhat higher than on a device. They still compare between
+ * versions of the code on the same host.
+ */
+public final class SysfsBenchmarks {
+    private static final int ITERATIONS = 20000;
+
+    private static final String[] NODES = {
+        "cpufreq/ondemand/sampling_rate",
+        "cpufreq/ondemand/up_threshold",
+        "cpufreq/ondemand/io_is_busy",
+        "cpufreq/ondemand/sampling_down_factor",
+        "cpufreq/ondemand/down_differential",
+    };
+    private static final String[] VALUES = { "50000", "90", "0", "4", "10" };
+    private static final String BRIGHTNESS = "sec_touchkey/brightness";
+
+    private SysfsBenchmarks() {
+    }
+
+    public static void run(final Harness harness, File root) throws Exception {
+        for (int i = 0; i < NODES.length; i++) {
+            create(new File(root, NODES[i]), VALUES[i]);
+        }
+        create(new File(root, BRIGHTNESS), "1");
+
+        final SysfsWriter writer = new SysfsWriter(root, 3600000);
+        harness.measure("SysfsWriter.writeNow(int)", ITERATIONS, new Harness.Op() {
+            @Override
+            public void run(int i) {
+                writer.writeNow(BRIGHTNESS, i & 1);
+            }
+        });
+        harness.measure("SysfsWriter.writeNow(String)", ITERATIONS, new Harness.Op() {
+            @Override
+            public void run(int i) {
+                writer.writeNow(NODES[0], (i & 1) == 0 ? "50000" : "30000");
+            }
+        });
+        harness.measure("SysfsWriter.write x5 + flush", ITERATIONS / NODES.length,
+                new Harness.Op() {
+            @Override
+            public void run(int i) {
+                for (int n = 0; n < NODES.length; n++) {
+                    writer.write(NODES[n], VALUES[n]);
+                }
+                writer.flush();
+            }
+        });
+        writer.close();
+
+        final SysfsCache cache = new SysfsCache(root, 3600000);
+        harness.measure("SysfsCache.get, cached", ITERATIONS * 10, new Harness.Op() {
+            @Override
+            public void run(int i) {
+                harness.consume(cache.get(NODES[i % NODES.length]));
+            }
+        });
+        harness.measure("SysfsCache.getInt, cached", ITERATIONS * 10, new Harness.Op() {
+            @Override
+            public void run(int i) {
+                harness.consume(cache.getInt(NODES[i % NODES.length], 0));
+            }
+        });
+        harness.measure("SysfsCache.get, re-read", ITERATIONS, new Harness.Op() {
+            @Override
+            public void run(int i) {
+                String node = NODES[i % NODES.length];
+                cache.invalidate(node);
+                harness.consume(cache.get(node));
+            }
+        });
+    }
+
+    private static void create(File file, String value) throws IOException {
+        file.getParentFile().mkdirs();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write((value + "\n").getBytes("US-ASCII"));
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package android.os;
+
+/**
+ * Host stand-in for the framework FileObserver. It never reports events,
+ * which is how sysfs attributes behave anyway.
+ */
+public abstract class FileObserver {
+    public static final int MODIFY = 0x00000002;
+    public static final int CLOSE_WRITE = 0x00000008;
+
+    public FileObserver(String path, int mask) {
+    }
+
+    public void startWatching() {
+    }
+
+    public void stopWatching() {
+    }
+
+    public abstract void onEvent(int event, String path);
+}
@@ -0,0 +1,122 @@
+package android.os;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Host stand-in for the framework Parcel, backed by a ByteBuffer. Ints and
+ * strings use the same layout as the real one: 4 byte little endian ints,
+ * strings as a char count followed by UTF-16 chars and a terminating zero,
+ * padded to 4 bytes, or -1 for null.
+ */
+public final class Parcel {
+    private ByteBuffer mData = ByteBuffer.allocate(256).order(ByteOrder.LITTLE_ENDIAN);
+    private int mSize;
+
+    private Parcel() {
+    }
+
+    public static Parcel obtain() {
+        return new Parcel();
+    }
+
+    public void recycle() {
+        mData.clear();
+        mSize = 0;
+    }
+
+    public int dataSize() {
+        return mSize;
+    }
+
+    public int dataPosition() {
+        return mData.position();
+    }
+
+    public int dataAvail() {
+        return mSize - mData.position();
+    }
+
+    public void setDataPosition(int pos) {
+        mData.position(pos);
+    }
+
+    public byte[] marshall() {
+        byte[] data = new byte[mSize];
+        System.arraycopy(mData.array(), 0, data, 0, mSize);
+        return data;
+    }
+
+    public void unmarshall(byte[] data, int offset, int length) {
+        mData = ByteBuffer.allocate(Math.max(length, 256)).order(ByteOrder.LITTLE_ENDIAN);
+        mData.put(data, offset, length);
+        mData.position(0);
+        mSize = length;
+    }
+
+    public void writeInt(int val) {
+        ensure(4);
+        mData.putInt(val);
+        grown();
+    }
+
+    public void writeString(String val) {
+        if (val == null) {
+            writeInt(-1);
+            return;
+        }
+        int length = val.length();
+        int bytes = ((length + 1) * 2 + 3) & ~3;
+        ensure(4 + bytes);
+        mData.putInt(length);
+        int start = mData.position();
+        for (int i = 0; i < length; i++) {
+            mData.putChar(val.charAt(i));
+        }
+        while (mData.position() < start + bytes) {
+            mData.put((byte) 0);
+        }
+        grown();
+    }
+
+    public int readInt() {
+        if (dataAvail() < 4) {
+            return 0;
+        }
+        return mData.getInt();
+    }
+
+    public String readString() {
+        int length = readInt();
+        if (length < 0) {
+            return null;
+        }
+        int bytes = ((length + 1) * 2 + 3) & ~3;
+        if (dataAvail() < bytes) {
+            return null;
+        }
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = mData.getChar();
+        }
+        mData.position(mData.position() + bytes - length * 2);
+        return new String(chars);
+    }
+
+    private void ensure(int bytes) {
+        if (mData.remaining() < bytes) {
+            ByteBuffer data = ByteBuffer.allocate(Math.max(mData.capacity() * 2,
+                    mData.position() + bytes)).order(ByteOrder.LITTLE_ENDIAN);
+            int pos = mData.position();
+            mData.position(0);
+            mData.limit(mSize);
+            data.put(mData);
+            data.position(pos);
+            mData = data;
+        }
+    }
+
+    private void grown() {
+        mSize = Math.max(mSize, mData.position());
+    }
+}
@@ -0,0 +1,24 @@
+package android.telephony;
+
+/**
+ * Host stand-in for the framework Rlog, printing to stderr.
+ */
+public final class Rlog {
+    private Rlog() {
+    }
+
+    public static int w(String tag, String msg) {
+        System.err.println("W/" + tag + ": " + msg);
+        return 0;
+    }
+
+    public static int e(String tag, String msg) {
+        System.err.println("E/" + tag + ": " + msg);
+        return 0;
+    }
+
+    public static int e(String tag, String msg, Throwable tr) {
+        System.err.println("E/" + tag + ": " + msg + ": " + tr);
+        return 0;
+    }
+}
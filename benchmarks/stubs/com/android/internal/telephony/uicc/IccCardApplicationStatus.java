@@ -0,0 +1,54 @@
+package com.android.internal.telephony.uicc;
+
+/**
+ * Host stand-in for the framework IccCardApplicationStatus, with the
+ * enums cut down to what the RIL values map to.
+ */
+public class IccCardApplicationStatus {
+    public enum AppType {
+        APPTYPE_UNKNOWN, APPTYPE_SIM, APPTYPE_USIM, APPTYPE_RUIM, APPTYPE_CSIM, APPTYPE_ISIM
+    }
+
+    public enum AppState {
+        APPSTATE_UNKNOWN, APPSTATE_DETECTED, APPSTATE_PIN, APPSTATE_PUK,
+        APPSTATE_SUBSCRIPTION_PERSO, APPSTATE_READY
+    }
+
+    public enum PersoSubState {
+        PERSOSUBSTATE_UNKNOWN, PERSOSUBSTATE_IN_PROGRESS, PERSOSUBSTATE_READY
+    }
+
+    public enum PinState {
+        PINSTATE_UNKNOWN, PINSTATE_ENABLED_NOT_VERIFIED, PINSTATE_ENABLED_VERIFIED,
+        PINSTATE_DISABLED, PINSTATE_ENABLED_BLOCKED, PINSTATE_ENABLED_PERM_BLOCKED
+    }
+
+    public AppType app_type;
+    public AppState app_state;
+    public PersoSubState perso_substate;
+    public String aid;
+    public String app_label;
+    public int pin1_replaced;
+    public PinState pin1;
+    public PinState pin2;
+
+    public AppType AppTypeFromRILInt(int type) {
+        return pick(AppType.values(), type);
+    }
+
+    public AppState AppStateFromRILInt(int state) {
+        return pick(AppState.values(), state);
+    }
+
+    public PersoSubState PersoSubstateFromRILInt(int substate) {
+        return pick(PersoSubState.values(), substate);
+    }
+
+    public PinState PinStateFromRILInt(int state) {
+        return pick(PinState.values(), state);
+    }
+
+    private static <T> T pick(T[] values, int index) {
+        return index >= 0 && index < values.length ? values[index] : values[0];
+    }
+}
@@ -0,0 +1,25 @@
+package com.android.internal.telephony.uicc;
+
+/**
+ * Host stand-in for the framework IccCardStatus, holding what
+ * IccCardStatusDecoder fills in.
+ */
+public class IccCardStatus {
+    public static final int CARD_MAX_APPS = 8;
+
+    public int mCardState;
+    public int mUniversalPinState;
+    public int mGsmUmtsSubscriptionAppIndex;
+    public int mCdmaSubscriptionAppIndex;
+    public int mImsSubscriptionAppIndex;
+
+    public IccCardApplicationStatus[] mApplications;
+
+    public void setCardState(int state) {
+        mCardState = state;
+    }
+
+    public void setUniversalPinState(int state) {
+        mUniversalPinState = state;
+    }
+}
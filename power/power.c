@@ -38,6 +38,7 @@ struct cm_power_module {
 };
 
 static char governor[20];
+static char configured_governor[20];
 
 static int sysfs_read(char *path, char *s, int num_bytes)
 {
@@ -111,8 +112,17 @@ static void cm_power_set_interactive(struct power_module *module, int on)
 }
 
 
+/*
+ * Balanced tunables, used until DeviceParts applies a cpu profile. They are
+ * written once per governor, so reopening boostpulse does not undo a
+ * profile applied since.
+ */
 static void configure_governor()
 {
+    if (strcmp(governor, configured_governor) == 0)
+        return;
+    strlcpy(configured_governor, governor, sizeof(configured_governor));
+
     if (strncmp(governor, "ondemand", 8) == 0) {
         sysfs_write("/sys/devices/system/cpu/cpufreq/ondemand/sampling_rate", "50000");
         sysfs_write("/sys/devices/system/cpu/cpufreq/ondemand/up_threshold", "90");
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+/**
+ * Immutable snapshot of the card application the JSR RILs address
+ * requests to.
+ *
+ * A new snapshot is published whenever any of its values change, with
+ * the generation bumped, so a caller holding an older snapshot can tell
+ * that its AID may be stale.
+ *
+ * {@hide}
+ */
+final class IccCardSession {
+    static final IccCardSession EMPTY = new IccCardSession(null, false, -1, 0);
+
+    /** AID of the subscription application, "" if it has none */
+    final String aid;
+    final boolean usim;
+    /** Preferred network type in effect when the application was picked */
+    final int preferredNetworkType;
+    final int generation;
+
+    private IccCardSession(String aid, boolean usim, int preferredNetworkType, int generation) {
+        this.aid = aid;
+        this.usim = usim;
+        this.preferredNetworkType = preferredNetworkType;
+        this.generation = generation;
+    }
+
+    /**
+     * Returns this snapshot if it already holds the given values, or a new
+     * one of the next generation.
+     */
+    IccCardSession update(String aid, boolean usim, int preferredNetworkType) {
+        if (usim == this.usim && preferredNetworkType == this.preferredNetworkType
+                && (aid == null ? this.aid == null : aid.equals(this.aid))) {
+            return this;
+        }
+        return new IccCardSession(aid, usim, preferredNetworkType, generation + 1);
+    }
+
+    @Override
+    public String toString() {
+        return "IccCardSession{aid=" + aid + " usim=" + usim
+                + " preferredNetworkType=" + preferredNetworkType
+                + " generation=" + generation + "}";
+    }
+}
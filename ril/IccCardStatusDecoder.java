@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.os.Parcel;
+
+import com.android.internal.telephony.uicc.IccCardApplicationStatus;
+import com.android.internal.telephony.uicc.IccCardStatus;
+
+/**
+ * Decodes RIL_REQUEST_GET_SIM_STATUS responses for JSRQualcommRIL.
+ *
+ * Every decode builds a new IccCardStatus graph. A status handed out is
+ * never modified afterwards, since consumers on other loopers may still
+ * have it queued. In reuse mode a response whose raw payload matches the
+ * previous one is not decoded at all; the previous status, unchanged, is
+ * returned again. AID and label strings equal to the previous ones are
+ * replaced by the previous instances.
+ *
+ * {@hide}
+ */
+class IccCardStatusDecoder {
+    private final boolean mReuse;
+    private final boolean mSkipPinPukCount;
+
+    private IccCardStatus mLast;
+    private int mCardState;
+
+    private int[] mRaw = new int[64];
+    private int[] mLastRaw = new int[64];
+    private int mLastRawLength = -1;
+
+    IccCardStatusDecoder(boolean reuse, boolean skipPinPukCount) {
+        mReuse = reuse;
+        mSkipPinPukCount = skipPinPukCount;
+    }
+
+    /**
+     * Returns true if the remainder of the parcel is identical to the
+     * last response decoded; the parcel is consumed in that case.
+     * Otherwise the parcel position is left untouched.
+     */
+    boolean matchesLast(Parcel p) {
+        if (!mReuse) {
+            return false;
+        }
+
+        int start = p.dataPosition();
+        int length = p.dataAvail() / 4;
+        if (mRaw.length < length) {
+            mRaw = new int[length];
+        }
+        for (int i = 0; i < length; i++) {
+            mRaw[i] = p.readInt();
+        }
+
+        boolean same = mLast != null && length == mLastRawLength;
+        for (int i = 0; same && i < length; i++) {
+            same = mRaw[i] == mLastRaw[i];
+        }
+
+        if (same) {
+            return true;
+        }
+
+        int[] raw = mLastRaw;
+        mLastRaw = mRaw;
+        mRaw = raw;
+        mLastRawLength = length;
+        p.setDataPosition(start);
+        return false;
+    }
+
+    /**
+     * Returns the status returned by the last call to {@link #decode}.
+     */
+    IccCardStatus getLast() {
+        return mLast;
+    }
+
+    /**
+     * Returns the card state of the last response, with REMOVED and
+     * SIM_DETECT_INSERTED already folded into ABSENT and PRESENT.
+     */
+    int getLastCardState() {
+        return mCardState;
+    }
+
+    IccCardStatus decode(Parcel p) {
+        IccCardApplicationStatus[] previous = mReuse && mLast != null
+                ? mLast.mApplications : null;
+
+        int cardState = p.readInt();
+        // Standard stack doesn't recognize REMOVED and SIM_DETECT_INSERTED,
+        // so convert them to ABSENT and PRESENT to trigger the hot-swapping check
+        if (cardState > 2)
+            cardState -= 3;
+
+        IccCardStatus cardStatus = new IccCardStatus();
+        cardStatus.setCardState(cardState);
+        cardStatus.setUniversalPinState(p.readInt());
+        cardStatus.mGsmUmtsSubscriptionAppIndex = p.readInt();
+        cardStatus.mCdmaSubscriptionAppIndex = p.readInt();
+        cardStatus.mImsSubscriptionAppIndex = p.readInt();
+
+        int numApplications = p.readInt();
+        // limit to maximum allowed applications
+        if (numApplications > IccCardStatus.CARD_MAX_APPS) {
+            numApplications = IccCardStatus.CARD_MAX_APPS;
+        }
+        if (numApplications < 0) {
+            numApplications = 0;
+        }
+
+        IccCardApplicationStatus[] apps = new IccCardApplicationStatus[numApplications];
+        cardStatus.mApplications = apps;
+
+        for (int i = 0; i < numApplications; i++) {
+            IccCardApplicationStatus appStatus = new IccCardApplicationStatus();
+            IccCardApplicationStatus old = previous != null && i < previous.length
+                    ? previous[i] : null;
+
+            appStatus.app_type = appStatus.AppTypeFromRILInt(p.readInt());
+            appStatus.app_state = appStatus.AppStateFromRILInt(p.readInt());
+            appStatus.perso_substate = appStatus.PersoSubstateFromRILInt(p.readInt());
+            appStatus.aid = reuse(p.readString(), old != null ? old.aid : null);
+            appStatus.app_label = reuse(p.readString(), old != null ? old.app_label : null);
+            appStatus.pin1_replaced = p.readInt();
+            appStatus.pin1 = appStatus.PinStateFromRILInt(p.readInt());
+            if (!mSkipPinPukCount) {
+                p.readInt(); //remaining_count_pin1
+                p.readInt(); //remaining_count_puk1
+            }
+            appStatus.pin2 = appStatus.PinStateFromRILInt(p.readInt());
+            if (!mSkipPinPukCount) {
+                p.readInt(); //remaining_count_pin2
+                p.readInt(); //remaining_count_puk2
+            }
+            apps[i] = appStatus;
+        }
+
+        mLast = cardStatus;
+        mCardState = cardState;
+        return cardStatus;
+    }
+
+    private static String reuse(String value, String previous) {
+        return value != null && value.equals(previous) ? previous : value;
+    }
+}
@@ -0,0 +1,379 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.os.AsyncResult;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+
+import com.android.internal.telephony.uicc.IccIoResult;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache for read-only SIM_IO commands.
+ *
+ * Successful READ BINARY, READ RECORD and GET RESPONSE results are kept
+ * keyed by command, file id, path, P1-P3 and AID, and evicted least
+ * recently used first once their payloads exceed the byte budget. READ
+ * RECORD is only cached in absolute mode; the next and previous modes
+ * depend on the record pointer on the card. The whole cache is dropped
+ * on any write, card state change or SIM refresh, including writes sent
+ * as raw SIM_IO or APDUs outside iccIOForApp; reads that were in flight
+ * at that point are not cached.
+ *
+ * Loading a linear fixed EF means a GET RESPONSE followed by one READ
+ * RECORD per record, each sent only once the previous one completed.
+ * Once a GET RESPONSE has given the record count of an EF, each absolute
+ * READ RECORD of it also reads the following records ahead, keeping up
+ * to the read-ahead count in flight. A request for a record being read
+ * waits for that read instead of sending its own. Results with an error
+ * status word are handed to whoever waits for them but never cached, and
+ * the record is not read ahead again until the cache is dropped.
+ *
+ * {@hide}
+ */
+class IccIoCache extends Handler {
+    static final int COMMAND_READ_BINARY = 0xb0;
+    static final int COMMAND_READ_RECORD = 0xb2;
+    static final int COMMAND_GET_RESPONSE = 0xc0;
+    static final int COMMAND_UPDATE_BINARY = 0xd6;
+    static final int COMMAND_UPDATE_RECORD = 0xdc;
+    static final int COMMAND_SELECT = 0xa4;
+    static final int COMMAND_STATUS = 0xf2;
+
+    static final int READ_RECORD_MODE_ABSOLUTE = 0x04;
+
+    // GET RESPONSE layout, as IccFileHandler parses it
+    private static final int RESPONSE_DATA_FILE_SIZE_1 = 2;
+    private static final int RESPONSE_DATA_FILE_SIZE_2 = 3;
+    private static final int RESPONSE_DATA_STRUCTURE = 13;
+    private static final int RESPONSE_DATA_RECORD_LENGTH = 14;
+    private static final int EF_TYPE_LINEAR_FIXED = 1;
+
+    private static final int EVENT_READ_DONE = 1;
+
+    // Rough per-entry overhead on top of the payload
+    private static final int ENTRY_OVERHEAD = 64;
+
+    static final class Key {
+        final int command;
+        final int fileid;
+        final String path;
+        final int p1;
+        final int p2;
+        final int p3;
+        final String aid;
+
+        Key(int command, int fileid, String path, int p1, int p2, int p3, String aid) {
+            this.command = command;
+            this.fileid = fileid;
+            this.path = path;
+            this.p1 = p1;
+            this.p2 = p2;
+            this.p3 = p3;
+            this.aid = aid;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return command == k.command && fileid == k.fileid
+                    && p1 == k.p1 && p2 == k.p2 && p3 == k.p3
+                    && equal(path, k.path) && equal(aid, k.aid);
+        }
+
+        @Override
+        public int hashCode() {
+            int h = command;
+            h = h * 31 + fileid;
+            h = h * 31 + p1;
+            h = h * 31 + p2;
+            h = h * 31 + p3;
+            h = h * 31 + (path != null ? path.hashCode() : 0);
+            h = h * 31 + (aid != null ? aid.hashCode() : 0);
+            return h;
+        }
+
+        private static boolean equal(String a, String b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+
+    /**
+     * Sends a SIM_IO read on behalf of the cache.
+     */
+    interface Sender {
+        void send(Key key, Message result);
+    }
+
+    private static final class Pending {
+        final Key key;
+        final Message result;
+        final int generation;
+        // Requests for the same key that came in while this one was in flight
+        ArrayList<Message> waiting;
+
+        Pending(Key key, Message result, int generation) {
+            this.key = key;
+            this.result = result;
+            this.generation = generation;
+        }
+    }
+
+    private final int mMaxBytes;
+    private final int mReadAhead;
+    private final Sender mSender;
+    private final LinkedHashMap<Key, IccIoResult> mEntries =
+            new LinkedHashMap<Key, IccIoResult>(16, 0.75f, true);
+    private final HashMap<Key, Pending> mInFlight = new HashMap<Key, Pending>();
+    // Record counts from GET RESPONSE, keyed by file id, path and AID only
+    private final HashMap<Key, Integer> mRecordCounts = new HashMap<Key, Integer>();
+    private final HashSet<Key> mFailed = new HashSet<Key>();
+    private int mBytes;
+    private int mGeneration;
+    private long mHits;
+    private long mMisses;
+    private long mJoined;
+    private long mReadAheads;
+
+    IccIoCache(Looper looper, int maxBytes, int readAhead, Sender sender) {
+        super(looper);
+        mMaxBytes = maxBytes;
+        mReadAhead = readAhead;
+        mSender = sender;
+    }
+
+    static boolean isRead(int command) {
+        return command == COMMAND_READ_BINARY || command == COMMAND_READ_RECORD
+                || command == COMMAND_GET_RESPONSE;
+    }
+
+    static boolean isCacheable(int command, int p2) {
+        if (command == COMMAND_READ_RECORD) {
+            return p2 == READ_RECORD_MODE_ABSOLUTE;
+        }
+        return isRead(command);
+    }
+
+    static boolean isWrite(int command) {
+        return command == COMMAND_UPDATE_BINARY || command == COMMAND_UPDATE_RECORD;
+    }
+
+    /**
+     * Returns false only for commands, or APDU instructions, known to
+     * leave file contents alone.
+     */
+    static boolean mayModify(int command) {
+        return !isRead(command) && command != COMMAND_SELECT && command != COMMAND_STATUS;
+    }
+
+    /**
+     * Returns a copy of the cached result for the key, or null.
+     */
+    synchronized IccIoResult get(Key key) {
+        IccIoResult cached = mEntries.get(key);
+        if (cached == null) {
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        return copyOf(cached);
+    }
+
+    /**
+     * Makes the result wait for a read of the key already in flight.
+     *
+     * @return false if there is no such read
+     */
+    synchronized boolean join(Key key, Message result) {
+        Pending pending = mInFlight.get(key);
+        if (pending == null) {
+            return false;
+        }
+        mJoined++;
+        if (result != null) {
+            if (pending.waiting == null) {
+                pending.waiting = new ArrayList<Message>();
+            }
+            pending.waiting.add(result);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the message to send the SIM_IO request with. Its response
+     * is cached if still valid and then passed on to the original result
+     * and to any result that joined it.
+     */
+    synchronized Message wrap(Key key, Message result) {
+        Pending pending = new Pending(key, result, mGeneration);
+        mInFlight.put(key, pending);
+        return obtainMessage(EVENT_READ_DONE, pending);
+    }
+
+    /**
+     * Sends reads for the records following an absolute READ RECORD that
+     * are neither cached nor in flight, up to the read-ahead count and
+     * the record count of the EF. Does nothing until a GET RESPONSE of
+     * the EF has been cached.
+     */
+    void readAhead(Key key) {
+        ArrayList<Key> keys = null;
+        ArrayList<Message> messages = null;
+        synchronized (this) {
+            Integer count = mRecordCounts.get(fileKey(key));
+            if (count == null) {
+                return;
+            }
+            int last = Math.min(key.p1 + mReadAhead, count);
+            for (int record = key.p1 + 1; record <= last; record++) {
+                Key next = new Key(key.command, key.fileid, key.path, record, key.p2, key.p3,
+                        key.aid);
+                if (mEntries.containsKey(next) || mInFlight.containsKey(next)
+                        || mFailed.contains(next)) {
+                    continue;
+                }
+                if (keys == null) {
+                    keys = new ArrayList<Key>();
+                    messages = new ArrayList<Message>();
+                }
+                keys.add(next);
+                messages.add(wrap(next, null));
+                mReadAheads++;
+            }
+        }
+        // Sent outside the lock, in record order
+        for (int i = 0; keys != null && i < keys.size(); i++) {
+            mSender.send(keys.get(i), messages.get(i));
+        }
+    }
+
+    synchronized void invalidate() {
+        mGeneration++;
+        mEntries.clear();
+        // Reads already in flight still answer their waiters, but no new
+        // request may wait for them
+        mInFlight.clear();
+        mRecordCounts.clear();
+        mFailed.clear();
+        mBytes = 0;
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println(" IccIoCache: entries=" + mEntries.size() + " bytes=" + mBytes + "/" + mMaxBytes
+                + " hits=" + mHits + " misses=" + mMisses + " joined=" + mJoined
+                + " readahead=" + mReadAheads + " (window " + mReadAhead + ")");
+    }
+
+    @Override
+    public void handleMessage(Message msg) {
+        if (msg.what != EVENT_READ_DONE) {
+            return;
+        }
+        AsyncResult ar = (AsyncResult) msg.obj;
+        Pending pending = (Pending) ar.userObj;
+
+        IccIoResult io = null;
+        if (ar.exception == null && ar.result instanceof IccIoResult) {
+            io = (IccIoResult) ar.result;
+        }
+        // No request joins once this is done, so the waiting list is final
+        complete(pending, io != null && io.success() ? io : null);
+
+        if (pending.result != null) {
+            AsyncResult.forMessage(pending.result, ar.result, ar.exception);
+            pending.result.sendToTarget();
+        }
+        for (int i = 0; pending.waiting != null && i < pending.waiting.size(); i++) {
+            Message waiting = pending.waiting.get(i);
+            AsyncResult.forMessage(waiting, io != null ? copyOf(io) : ar.result, ar.exception);
+            waiting.sendToTarget();
+        }
+    }
+
+    private synchronized void complete(Pending pending, IccIoResult io) {
+        if (mInFlight.get(pending.key) == pending) {
+            mInFlight.remove(pending.key);
+        }
+        if (pending.generation != mGeneration) {
+            return;
+        }
+        if (io == null) {
+            mFailed.add(pending.key);
+            return;
+        }
+        if (pending.key.command == COMMAND_GET_RESPONSE) {
+            int count = recordCount(io.payload);
+            if (count > 0) {
+                mRecordCounts.put(fileKey(pending.key), count);
+            }
+        }
+        int size = sizeOf(io);
+        if (size > mMaxBytes) {
+            return;
+        }
+        IccIoResult old = mEntries.put(pending.key, copyOf(io));
+        if (old != null) {
+            mBytes -= sizeOf(old);
+        }
+        mBytes += size;
+
+        Iterator<Map.Entry<Key, IccIoResult>> it = mEntries.entrySet().iterator();
+        while (mBytes > mMaxBytes && it.hasNext()) {
+            mBytes -= sizeOf(it.next().getValue());
+            it.remove();
+        }
+    }
+
+    /**
+     * Returns the number of records of a linear fixed EF from its GET
+     * RESPONSE, or 0 for any other structure.
+     */
+    private static int recordCount(byte[] data) {
+        if (data == null || data.length <= RESPONSE_DATA_RECORD_LENGTH
+                || data[RESPONSE_DATA_STRUCTURE] != EF_TYPE_LINEAR_FIXED) {
+            return 0;
+        }
+        int recordSize = data[RESPONSE_DATA_RECORD_LENGTH] & 0xff;
+        int fileSize = ((data[RESPONSE_DATA_FILE_SIZE_1] & 0xff) << 8)
+                + (data[RESPONSE_DATA_FILE_SIZE_2] & 0xff);
+        return recordSize > 0 ? fileSize / recordSize : 0;
+    }
+
+    private static Key fileKey(Key key) {
+        return new Key(COMMAND_GET_RESPONSE, key.fileid, key.path, 0, 0, 0, key.aid);
+    }
+
+    private static IccIoResult copyOf(IccIoResult io) {
+        return new IccIoResult(io.sw1, io.sw2, io.payload != null ? io.payload.clone() : null);
+    }
+
+    private static int sizeOf(IccIoResult io) {
+        return ENTRY_OVERHEAD + (io.payload != null ? io.payload.length : 0);
+    }
+}
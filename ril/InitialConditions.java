@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.os.AsyncResult;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+import android.telephony.Rlog;
+
+import java.io.PrintWriter;
+
+/**
+ * Brings a freshly connected modem into its initial state and times it.
+ *
+ * The radio power off, preferred network type and CDMA subscription
+ * source requests are sent in that order straight from the
+ * RIL_UNSOL_RIL_CONNECTED handler, before the framework hears about the
+ * connection, so rild always sees the power off ahead of anything the
+ * framework sends in reaction to it. Only their completions are handled
+ * here.
+ *
+ * Failures are logged and counted. Time to RIL ready (all requests
+ * acknowledged) and to SIM ready (first READY card application) are
+ * measured from RIL_UNSOL_RIL_CONNECTED. A new connection restarts the
+ * measurement and drops completions of the old one.
+ *
+ * {@hide}
+ */
+class InitialConditions extends Handler {
+    static final String LOG_TAG = "RILJ";
+
+    private static final int EVENT_STEP_DONE = 1;
+
+    private static final int STEP_RADIO_POWER = 0;
+    private static final int STEP_NETWORK_TYPE = 1;
+    private static final int STEP_CDMA_SUBSCRIPTION = 2;
+    private static final String[] STEP_NAMES = { "radio power off", "network type", "cdma subscription" };
+
+    private final RIL mRil;
+    private final long mCreatedAt = SystemClock.elapsedRealtime();
+
+    // Written only by the thread delivering RIL_UNSOL_RIL_CONNECTED
+    private volatile int mGeneration;
+
+    // Only touched on our looper, except for dump
+    private int mTracked;
+    private int mOutstanding;
+    private long mConnectedAt = -1;
+    private long mRadioOffAt = -1;
+    private long mRilReadyAt = -1;
+    private volatile long mSimReadyAt = -1;
+    private int mConnections;
+    private int mErrors;
+
+    InitialConditions(RIL ril, Looper looper) {
+        super(looper);
+        mRil = ril;
+    }
+
+    /**
+     * Sends the initial requests for a new connection to rild. Must be
+     * called on the thread delivering unsolicited responses, before the
+     * connection is announced.
+     */
+    void start(int preferredNetworkType, int cdmaSubscription) {
+        final long connectedAt = SystemClock.elapsedRealtime();
+        final int generation = mGeneration + 1;
+        mGeneration = generation;
+        // Queued ahead of any completion of the requests below
+        post(new Runnable() {
+            @Override
+            public void run() {
+                mTracked = generation;
+                mConnections++;
+                mConnectedAt = connectedAt;
+                mRadioOffAt = -1;
+                mRilReadyAt = -1;
+                mSimReadyAt = -1;
+                mOutstanding = STEP_NAMES.length;
+            }
+        });
+        mRil.setRadioPower(false,
+                obtainMessage(EVENT_STEP_DONE, generation, STEP_RADIO_POWER));
+        mRil.setPreferredNetworkType(preferredNetworkType,
+                obtainMessage(EVENT_STEP_DONE, generation, STEP_NETWORK_TYPE));
+        mRil.setCdmaSubscriptionSource(cdmaSubscription,
+                obtainMessage(EVENT_STEP_DONE, generation, STEP_CDMA_SUBSCRIPTION));
+    }
+
+    /**
+     * Called when a READY card application is first seen.
+     */
+    void onSimReady() {
+        if (mSimReadyAt < 0 && mConnectedAt >= 0) {
+            mSimReadyAt = SystemClock.elapsedRealtime();
+            Rlog.w(LOG_TAG, "[JSR] SIM ready " + (mSimReadyAt - mConnectedAt)
+                    + "ms after RIL connected");
+        }
+    }
+
+    @Override
+    public void handleMessage(Message msg) {
+        if (msg.what != EVENT_STEP_DONE || msg.arg1 != mTracked) {
+            // Completion of a request sent for an earlier connection
+            return;
+        }
+        AsyncResult ar = (AsyncResult) msg.obj;
+        if (ar.exception != null) {
+            mErrors++;
+            Rlog.e(LOG_TAG, "[JSR] initial " + STEP_NAMES[msg.arg2] + " failed", ar.exception);
+        }
+        if (msg.arg2 == STEP_RADIO_POWER) {
+            mRadioOffAt = SystemClock.elapsedRealtime();
+        }
+        mOutstanding--;
+
+        if (mRilReadyAt < 0 && mOutstanding == 0) {
+            mRilReadyAt = SystemClock.elapsedRealtime();
+            Rlog.w(LOG_TAG, "[JSR] RIL ready " + (mRilReadyAt - mConnectedAt)
+                    + "ms after RIL connected (" + (mConnectedAt - mCreatedAt)
+                    + "ms after RIL created), " + mErrors + " errors");
+        }
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println(" InitialConditions: connections=" + mConnections + " errors=" + mErrors
+                + " connected=" + since(mCreatedAt, mConnectedAt)
+                + " radioOff=" + since(mConnectedAt, mRadioOffAt)
+                + " rilReady=" + since(mConnectedAt, mRilReadyAt)
+                + " simReady=" + since(mConnectedAt, mSimReadyAt));
+    }
+
+    private static String since(long from, long to) {
+        return from >= 0 && to >= 0 ? "+" + (to - from) + "ms" : "-";
+    }
+}
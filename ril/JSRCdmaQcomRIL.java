@@ -28,6 +28,7 @@ import android.os.Parcel;
 import android.telephony.SmsMessage;
 import android.os.SystemProperties;
 import android.telephony.SignalStrength;
+import android.telephony.Rlog;
 import android.os.SystemClock;
 import android.os.AsyncResult;
 import android.text.TextUtils;
@@ -40,6 +41,9 @@ import com.android.internal.telephony.cdma.CdmaInformationRecords;
 import com.android.internal.telephony.cdma.CdmaInformationRecords.CdmaSignalInfoRec;
 import com.android.internal.telephony.cdma.SignalToneUtil;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 
 /**
@@ -48,15 +52,161 @@ import java.util.ArrayList;
  * {@hide}
  */
 public class JSRCdmaQcomRIL extends JSRQualcommRIL implements CommandsInterface {
-    boolean RILJ_LOGV = true;
-    boolean RILJ_LOGD = true;
-
     private Object mSMSLock = new Object();
     private boolean mIsSendingSMS = false;
     public static final long SEND_SMS_TIMEOUT_IN_MS = 30000;
+
+    private SmsSender mSmsSender;
+
     public JSRCdmaQcomRIL(Context context, int networkMode, int cdmaSubscription) {
         super(context, networkMode, cdmaSubscription);
         mQANElements = 4;
     }
- }
+
+    @Override
+    public void
+    sendCdmaSms(byte[] pdu, Message result) {
+        synchronized (mSMSLock) {
+            if (mSmsSender == null) {
+                mSmsSender = new SmsSender(getIccHandler().getLooper());
+            }
+            mSmsSender.enqueue(pdu, result);
+        }
+    }
+
+    @Override
+    public void
+    dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        super.dump(fd, pw, args);
+        synchronized (mSMSLock) {
+            if (mSmsSender != null) {
+                mSmsSender.dump(pw);
+            }
+        }
+    }
+
+// ------------------------------------------------------------------------------------
+
+    /**
+     * Queue for outgoing CDMA SMS.
+     *
+     * One message is sent to the modem at a time, unless
+     * ro.telephony.jsr.sms_inflight allows more; the rest wait in order.
+     * Errors are returned as they come, retrying is left to SMSDispatcher.
+     * A message without a response after SEND_SMS_TIMEOUT_IN_MS fails with
+     * GENERIC_FAILURE and frees its slot.
+     *
+     * Since the timeout is the same for all messages, the in-flight list is
+     * ordered by deadline and a single timer message covers the oldest
+     * deadline. All state is guarded by mSMSLock.
+     */
+    private class SmsSender extends Handler {
+        private static final int EVENT_SEND_DONE = 1;
+        private static final int EVENT_TIMER = 2;
+
+        private final class Entry {
+            final byte[] pdu;
+            final Message result;
+            long due;
+
+            Entry(byte[] pdu, Message result) {
+                this.pdu = pdu;
+                this.result = result;
+            }
+        }
+
+        private final int mMaxInFlight;
+
+        private final ArrayDeque<Entry> mWaiting = new ArrayDeque<Entry>();
+        private final ArrayDeque<Entry> mInFlight = new ArrayDeque<Entry>();
+        private long mTimerAt = Long.MAX_VALUE;
+
+        private long mSent;
+        private long mTimedOut;
+
+        SmsSender(Looper looper) {
+            super(looper);
+            mMaxInFlight = Math.max(1, SystemProperties.getInt("ro.telephony.jsr.sms_inflight", 1));
+        }
+
+        void enqueue(byte[] pdu, Message result) {
+            mWaiting.add(new Entry(pdu, result));
+            pump();
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            synchronized (mSMSLock) {
+                switch (msg.what) {
+                    case EVENT_SEND_DONE:
+                        onSendDone((AsyncResult) msg.obj);
+                        break;
+                    case EVENT_TIMER:
+                        mTimerAt = Long.MAX_VALUE;
+                        onTimer();
+                        break;
+                }
+                pump();
+            }
+        }
+
+        private void onSendDone(AsyncResult ar) {
+            Entry entry = (Entry) ar.userObj;
+            if (!mInFlight.remove(entry)) {
+                // Already failed by the timeout
+                Rlog.w(RILJ_LOG_TAG, "[JSR] late response for timed out CDMA SMS");
+                return;
+            }
+            deliver(entry, ar.result, ar.exception);
+        }
+
+        private void onTimer() {
+            long now = SystemClock.elapsedRealtime();
+            while (!mInFlight.isEmpty() && mInFlight.peekFirst().due <= now) {
+                Entry entry = mInFlight.pollFirst();
+                mTimedOut++;
+                Rlog.w(RILJ_LOG_TAG, "[JSR] CDMA SMS timed out after " + SEND_SMS_TIMEOUT_IN_MS + "ms");
+                deliver(entry, null, new CommandException(CommandException.Error.GENERIC_FAILURE));
+            }
+        }
+
+        private void pump() {
+            while (mInFlight.size() < mMaxInFlight && !mWaiting.isEmpty()) {
+                Entry entry = mWaiting.pollFirst();
+                entry.due = SystemClock.elapsedRealtime() + SEND_SMS_TIMEOUT_IN_MS;
+                mInFlight.addLast(entry);
+                mSent++;
+                JSRCdmaQcomRIL.super.sendCdmaSms(entry.pdu, obtainMessage(EVENT_SEND_DONE, entry));
+            }
+            mIsSendingSMS = !mInFlight.isEmpty();
+            scheduleTimer();
+        }
+
+        private void scheduleTimer() {
+            long next = mInFlight.isEmpty() ? Long.MAX_VALUE : mInFlight.peekFirst().due;
+            if (next == mTimerAt) {
+                return;
+            }
+            removeMessages(EVENT_TIMER);
+            mTimerAt = next;
+            if (next != Long.MAX_VALUE) {
+                sendEmptyMessageDelayed(EVENT_TIMER,
+                        Math.max(0, next - SystemClock.elapsedRealtime()));
+            }
+        }
+
+        private void deliver(Entry entry, Object result, Throwable exception) {
+            if (entry.result != null) {
+                AsyncResult.forMessage(entry.result, result, exception);
+                entry.result.sendToTarget();
+            }
+        }
+
+        void dump(PrintWriter pw) {
+            pw.println(" CDMA SMS: sending=" + mIsSendingSMS + " waiting=" + mWaiting.size()
+                    + " inflight=" + mInFlight.size() + "/" + mMaxInFlight
+                    + " sent=" + mSent + " timedout=" + mTimedOut);
+        }
+    }
+}
     
@@ -26,11 +26,13 @@ import android.os.Looper;
 import android.os.Message;
 import android.os.Parcel;
 import android.telephony.SmsMessage;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.telephony.Rlog;
 import android.telephony.SignalStrength;
 import android.text.TextUtils;
 import android.util.Log;
+import android.util.SparseArray;
 
 import com.android.internal.telephony.RILConstants;
 import com.android.internal.telephony.gsm.SmsBroadcastConfigInfo;
@@ -44,6 +46,11 @@ import com.android.internal.telephony.dataconnection.DataProfile;
 import com.android.internal.telephony.uicc.IccCardApplicationStatus;
 import com.android.internal.telephony.uicc.IccCardStatus;
 import com.android.internal.telephony.uicc.IccIoResult;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 
 /**
@@ -57,8 +64,12 @@ import java.util.ArrayList;
  */
 
 public class JSRQualcommRIL extends RIL implements CommandsInterface {
-    boolean RILJ_LOGV = true;
-    boolean RILJ_LOGD = true;
+    static final JsrRilLog sLog = new JsrRilLog();
+
+    private static final String METRICS_FILE_ARG = "--jsr-metrics";
+
+    private static final Object sIccThreadLock = new Object();
+    private static HandlerThread[] sIccThreads;
 
     static final int RIL_REQUEST_GET_UICC_SUBSCRIPTION  = 10120;   // deprecated
     static final int RIL_REQUEST_GET_DATA_SUBSCRIPTION  = 10121;   // deprecated
@@ -66,8 +77,6 @@ public class JSRQualcommRIL extends RIL implements CommandsInterface {
     
     protected HandlerThread mIccThread;
     protected IccHandler mIccHandler;
-    protected String mAid;
-    protected boolean mUSIM = false;
     protected String[] mLastDataIface = new String[20];
     boolean skipCdmaSubcription = needsOldRilFeature("skipCdmaSubcription");
     
@@ -76,40 +85,132 @@ public class JSRQualcommRIL extends RIL implements CommandsInterface {
     private final int RIL_INT_RADIO_ON          = 2;
     private final int RIL_INT_RADIO_ON_NG       = 10;
     private final int RIL_INT_RADIO_ON_HTC      = 13;
-    private int mSetPreferredNetworkType	= -1;
+    private IccCardStatusDecoder mIccCardStatusDecoder;
+    private volatile SparseArray<UnsolicitedHandler> mUnsolicitedHandlers;
+    private volatile JsrRilMetrics mMetrics;
+    private volatile IccIoCache mIccIoCache;
+    // Published by responseIccCardStatus, read without locking everywhere
+    private volatile IccCardSession mCardSession;
+    private volatile JsrRilTrace.Recorder mTraceRecorder;
+    private volatile boolean mTraceChecked;
+    private RadioStateFilter mRadioStateFilter;
+    private InitialConditions mInitialConditions;
 
     public JSRQualcommRIL(Context context, int networkMode, int cdmaSubscription) {        
         super(context, networkMode, cdmaSubscription);
-        mSetPreferredNetworkType = -1;
         mQANElements = 5;
+        getUnsolicitedHandlers();
+        getInitialConditions();
         Rlog.w(RILJ_LOG_TAG, "[JSR] Create JSRQualcommRIL");
     }
 
     public JSRQualcommRIL(Context context, int networkMode, int cdmaSubscription, Integer instanceId) {
         super(context, networkMode, cdmaSubscription, instanceId);
-        mSetPreferredNetworkType = -1;
         mQANElements = 5;
+        getUnsolicitedHandlers();
+        getInitialConditions();
         Rlog.w(RILJ_LOG_TAG, "[JSR] Create JSRQualcommRIL [" + instanceId + "]");
     }
 
+    /**
+     * Returns the instance id for log and metrics records, -1 if unset.
+     */
+    protected int
+    getInstance() {
+        return mInstanceId != null ? mInstanceId : -1;
+    }
+
+    @Override
+    public void
+    dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        super.dump(fd, pw, args);
+        pw.println("JSRQualcommRIL [" + getInstance() + "]:");
+        pw.println(" " + getCardSession());
+        sLog.dump(pw);
+        getMetrics().dump(pw);
+        if (mIccIoCache != null) {
+            mIccIoCache.dump(pw);
+        }
+        getRadioStateFilter().dump(pw);
+        getInitialConditions().dump(pw);
+        JsrRilTrace.Recorder recorder = mTraceRecorder;
+        if (recorder != null) {
+            recorder.flush();
+            pw.println(" trace: " + recorder.getFile());
+        }
+
+        // dumpsys can also write the metrics to a file: --jsr-metrics
+        if (args != null) {
+            for (String arg : args) {
+                if (arg.equals(METRICS_FILE_ARG)) {
+                    File file = getRadioFile("jsr-metrics", ".txt");
+                    try {
+                        getMetrics().writeTo(file);
+                        pw.println(" metrics written to " + file);
+                    } catch (IOException e) {
+                        pw.println(" unable to write metrics to " + file + ": " + e);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a file of this instance under /data/misc/radio, where the
+     * phone process keeps its own files.
+     */
+    private File
+    getRadioFile(String name, String suffix) {
+        int instance = getInstance();
+        return new File("/data/misc/radio", name
+                + (instance >= 0 ? "-" + instance : "") + suffix);
+    }
+
+    /**
+     * Returns the trace recorder if persist.radio.jsr.trace is set, or null.
+     * The trace goes to /data/misc/radio/jsr-trace[-instance].bin and is
+     * restarted with each phone process.
+     */
+    protected JsrRilTrace.Recorder
+    getTraceRecorder() {
+        if (mTraceChecked) {
+            return mTraceRecorder;
+        }
+        synchronized (this) {
+            if (!mTraceChecked) {
+                if (SystemProperties.getBoolean("persist.radio.jsr.trace", false)) {
+                    File file = getRadioFile("jsr-trace", ".bin");
+                    try {
+                        mTraceRecorder = new JsrRilTrace.Recorder(file);
+                        Rlog.w(RILJ_LOG_TAG, "[JSR] tracing parcels to " + file);
+                    } catch (IOException e) {
+                        Rlog.e(RILJ_LOG_TAG, "[JSR] unable to trace to " + file, e);
+                    }
+                }
+                mTraceChecked = true;
+            }
+        }
+        return mTraceRecorder;
+    }
+
 // ------------------------------------------------------------------------------------
     
     @Override
     public void getCellInfoList(Message result) {
-        if (RILJ_LOGD) riljLog("[JSR] > getCellInfoList [NOT SUPPORTED]");
+        if (sLog.isDebug()) riljLog("[JSR] > getCellInfoList [NOT SUPPORTED]");
         //RILRequest rr = RILRequest.obtain(RIL_REQUEST_GET_CELL_INFO_LIST, result);
     }
 
     @Override
     public void setCellInfoListRate(int rateInMillis, Message response) {
-        if (RILJ_LOGD) riljLog("[JSR] > setCellInfoListRate [NOT SUPPORTED]");
+        if (sLog.isDebug()) riljLog("[JSR] > setCellInfoListRate [NOT SUPPORTED]");
         //RILRequest rr = RILRequest.obtain(RIL_REQUEST_SET_UNSOL_CELL_INFO_LIST_RATE, result);
     }
 
     @Override
     public void setInitialAttachApn(String apn, String protocol, int authType, String username,
             String password, Message result) {
-        if (RILJ_LOGD) riljLog("[JSR] > setInitialAttachApn [NOT SUPPORTED]");
+        if (sLog.isDebug()) riljLog("[JSR] > setInitialAttachApn [NOT SUPPORTED]");
         //RILRequest rr = RILRequest.obtain(RIL_REQUEST_SET_INITIAL_ATTACH_APN, null);
     }
     
@@ -117,49 +218,46 @@ public class JSRQualcommRIL extends RIL implements CommandsInterface {
 
     @Override public void
     supplyIccPin2(String pin, Message result) {
-        supplyIccPin2ForApp(pin, mAid, result);
+        supplyIccPin2ForApp(pin, getCardSession().aid, result);
     }
 
     @Override public void
     changeIccPin2(String oldPin2, String newPin2, Message result) {
-        changeIccPin2ForApp(oldPin2, newPin2, mAid, result);
+        changeIccPin2ForApp(oldPin2, newPin2, getCardSession().aid, result);
     }
 
     @Override public void
     supplyIccPuk(String puk, String newPin, Message result) {
-        supplyIccPukForApp(puk, newPin, mAid, result);
+        supplyIccPukForApp(puk, newPin, getCardSession().aid, result);
     }
 
     @Override public void
     supplyIccPuk2(String puk2, String newPin2, Message result) {
-        supplyIccPuk2ForApp(puk2, newPin2, mAid, result);
+        supplyIccPuk2ForApp(puk2, newPin2, getCardSession().aid, result);
     }
 
     @Override
     public void
     queryFacilityLock(String facility, String password, int serviceClass, Message response) {
-        queryFacilityLockForApp(facility, password, serviceClass, mAid, response);
+        queryFacilityLockForApp(facility, password, serviceClass, getCardSession().aid, response);
     }
 
     @Override
     public void
     setFacilityLock (String facility, boolean lockState, String password, int serviceClass, Message response) {
-        setFacilityLockForApp(facility, lockState, password, serviceClass, mAid, response);
+        setFacilityLockForApp(facility, lockState, password, serviceClass, getCardSession().aid, response);
     }
 
     @Override
     public void
     getIMSI(Message result) {
+        String aid = getCardSession().aid;
         RILRequest rr = RILRequest.obtain(RIL_REQUEST_GET_IMSI, result);
 
         rr.mParcel.writeInt(1);
-        rr.mParcel.writeString(mAid);
+        rr.mParcel.writeString(aid);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() +
-                              "> getIMSI:RIL_REQUEST_GET_IMSI " +
-                              RIL_REQUEST_GET_IMSI +
-                              " aid: " + mAid +
-                              " " + requestToString(rr.mRequest));
+        sLog.request(getInstance(), rr.mSerial, rr.mRequest, aid);
 
         send(rr);
     }
@@ -169,7 +267,7 @@ public class JSRQualcommRIL extends RIL implements CommandsInterface {
     setNetworkSelectionModeManual(String operatorNumeric, Message response) {
         RILRequest rr = RILRequest.obtain(RIL_REQUEST_SET_NETWORK_SELECTION_MANUAL, response);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest) + " " + operatorNumeric);
+        sLog.request(getInstance(), rr.mSerial, rr.mRequest, operatorNumeric);
 
         rr.mParcel.writeInt(2);
         rr.mParcel.writeString(operatorNumeric);
@@ -182,8 +280,50 @@ public class JSRQualcommRIL extends RIL implements CommandsInterface {
     public void
     iccIO (int command, int fileid, String path, int p1, int p2, int p3,
             String data, String pin2, Message result) {
+        iccIOForApp(command, fileid, path, p1, p2, p3, data, pin2,
+                getCardSession().aid, result);
+    }
+
+    /**
+     * All SIM_IO goes through here, from IccFileHandler and the SIM
+     * phonebook and SMS code as well as from {@link #iccIO}, so reads are
+     * served from and writes invalidate the same cache.
+     */
+    @Override
+    public void
+    iccIOForApp (int command, int fileid, String path, int p1, int p2, int p3,
+            String data, String pin2, String aid, Message result) {
         //Note: This RIL request has not been renamed to ICC,
         //       but this request is also valid for SIM and RUIM
+        IccIoCache cache = getIccIoCache();
+        if (cache != null) {
+            if (IccIoCache.isWrite(command)) {
+                cache.invalidate();
+            } else if (IccIoCache.isCacheable(command, p2) && pin2 == null) {
+                IccIoCache.Key key = new IccIoCache.Key(command, fileid, path, p1, p2, p3, aid);
+                IccIoResult cached = cache.get(key);
+                if (cached != null) {
+                    if (result != null) {
+                        AsyncResult.forMessage(result, cached, null);
+                        result.sendToTarget();
+                    }
+                } else if (!cache.join(key, result)) {
+                    sendIccIO(command, fileid, path, p1, p2, p3, data, pin2, aid,
+                            cache.wrap(key, result));
+                }
+                if (command == IccIoCache.COMMAND_READ_RECORD) {
+                    cache.readAhead(key);
+                }
+                return;
+            }
+        }
+
+        sendIccIO(command, fileid, path, p1, p2, p3, data, pin2, aid, result);
+    }
+
+    private void
+    sendIccIO (int command, int fileid, String path, int p1, int p2, int p3,
+            String data, String pin2, String aid, Message result) {
         RILRequest rr = RILRequest.obtain(RIL_REQUEST_SIM_IO, result);
 
         rr.mParcel.writeInt(command);
@@ -194,64 +334,73 @@ public class JSRQualcommRIL extends RIL implements CommandsInterface {
         rr.mParcel.writeInt(p3);
         rr.mParcel.writeString(data);
         rr.mParcel.writeString(pin2);
-        rr.mParcel.writeString(mAid);
+        rr.mParcel.writeString(aid);
 
-        if (RILJ_LOGD) riljLog(rr.serialString() + "> iccIO: "
-                    + " aid: " + mAid + " "
-                    + requestToString(rr.mRequest)
-                    + " 0x" + Integer.toHexString(command)
-                    + " 0x" + Integer.toHexString(fileid) + " "
-                    + " path: " + path + ","
-                    + p1 + "," + p2 + "," + p3);
+        sLog.request(getInstance(), rr.mSerial, rr.mRequest,
+                command, fileid, p1, p2, p3, path, aid);
 
         send(rr);
     }
 
+    /**
+     * SIM_IO and APDUs sent outside iccIOForApp, for instance on behalf of
+     * carrier privileged apps, can update files as well, so anything but
+     * a known read drops the SIM_IO cache before it is sent.
+     */
+    @Override
+    public void
+    iccExchangeSimIO (int fileID, int command, int p1, int p2, int p3,
+            String pathID, Message response) {
+        if (IccIoCache.mayModify(command)) {
+            invalidateIccIoCache();
+        }
+        super.iccExchangeSimIO(fileID, command, p1, p2, p3, pathID, response);
+    }
+
+    @Override
+    public void
+    iccTransmitApduBasicChannel (int cla, int instruction, int p1, int p2, int p3,
+            String data, Message response) {
+        if (IccIoCache.mayModify(instruction)) {
+            invalidateIccIoCache();
+        }
+        super.iccTransmitApduBasicChannel(cla, instruction, p1, p2, p3, data, response);
+    }
+
+    @Override
+    public void
+    iccTransmitApduLogicalChannel (int channel, int cla, int instruction,
+            int p1, int p2, int p3, String data, Message response) {
+        if (IccIoCache.mayModify(instruction)) {
+            invalidateIccIoCache();
+        }
+        super.iccTransmitApduLogicalChannel(channel, cla, instruction, p1, p2, p3, data,
+                response);
+    }
+
     @Override
     protected Object
     responseIccCardStatus(Parcel p) {
-        IccCardApplicationStatus appStatus;
-
-        int cardState = p.readInt(); 
-        // Standard stack doesn't recognize REMOVED and SIM_DETECT_INSERTED,
-        // so convert them to ABSENT and PRESENT to trigger the hot-swapping check 
-        if (cardState > 2)
-            cardState -= 3;
-
-        IccCardStatus cardStatus = new IccCardStatus();
-        cardStatus.setCardState(cardState);
-        cardStatus.setUniversalPinState(p.readInt());
-        cardStatus.mGsmUmtsSubscriptionAppIndex = p.readInt();
-        cardStatus.mCdmaSubscriptionAppIndex = p.readInt();
-        cardStatus.mImsSubscriptionAppIndex = p.readInt();
-
-        int numApplications = p.readInt();
-        // limit to maximum allowed applications
-        if (numApplications > IccCardStatus.CARD_MAX_APPS) {
-            numApplications = IccCardStatus.CARD_MAX_APPS;
-        }
-        cardStatus.mApplications = new IccCardApplicationStatus[numApplications];
-
-        for (int i = 0; i < numApplications; i++) {
-            appStatus = new IccCardApplicationStatus();
-            appStatus.app_type = appStatus.AppTypeFromRILInt(p.readInt());
-            appStatus.app_state = appStatus.AppStateFromRILInt(p.readInt());
-            appStatus.perso_substate = appStatus.PersoSubstateFromRILInt(p.readInt());
-            appStatus.aid = p.readString();
-            appStatus.app_label = p.readString();
-            appStatus.pin1_replaced = p.readInt();
-            appStatus.pin1 = appStatus.PinStateFromRILInt(p.readInt());
-            if (!needsOldRilFeature("skippinpukcount")) {
-                p.readInt(); //remaining_count_pin1
-                p.readInt(); //remaining_count_puk1
-            }
-            appStatus.pin2 = appStatus.PinStateFromRILInt(p.readInt());
-            if (!needsOldRilFeature("skippinpukcount")) {
-                p.readInt(); //remaining_count_pin2
-                p.readInt(); //remaining_count_puk2
-            }
-            cardStatus.mApplications[i] = appStatus;
+        JsrRilTrace.Recorder recorder = getTraceRecorder();
+        if (recorder != null) {
+            recorder.record(JsrRilTrace.KIND_ICC_STATUS, p, p.dataPosition());
+        }
+
+        IccCardStatusDecoder decoder = getIccCardStatusDecoder();
+
+        if (decoder.matchesLast(p)) {
+            // Nothing changed since the last poll, so neither did the card session
+            if (sLog.isVerbose()) riljLog("[JSR] responseIccCardStatus: unchanged");
+            return decoder.getLast();
         }
+
+        // The card changed in some way; cached SIM files may be stale
+        invalidateIccIoCache();
+
+        IccCardStatus cardStatus = decoder.decode(p);
+        int cardState = decoder.getLastCardState();
+        int numApplications = cardStatus.mApplications.length;
+
         int appIndex = -1;
         if (mPhoneType == RILConstants.CDMA_PHONE && !skipCdmaSubcription) {
             appIndex = cardStatus.mCdmaSubscriptionAppIndex;
@@ -266,158 +415,422 @@ public class JSRQualcommRIL extends RIL implements CommandsInterface {
 
         if (appIndex >= 0 && numApplications > 0) {
             IccCardApplicationStatus application = cardStatus.mApplications[appIndex];
-            mAid = application.aid;
-            mUSIM = (application.app_type == IccCardApplicationStatus.AppType.APPTYPE_USIM);
-            mSetPreferredNetworkType = mPreferredNetworkType;
-
-            if (TextUtils.isEmpty(mAid))
-               mAid = "";
-            Rlog.w(RILJ_LOG_TAG, "mAid = '" + mAid + "'");
+            String aid = application.aid;
+            if (TextUtils.isEmpty(aid))
+               aid = "";
+            IccCardSession session = getCardSession().update(aid,
+                    application.app_type == IccCardApplicationStatus.AppType.APPTYPE_USIM,
+                    mPreferredNetworkType);
+            mCardSession = session;
+            Rlog.w(RILJ_LOG_TAG, "aid = '" + aid + "' generation " + session.generation);
         }
 
         return cardStatus;
     }
 
+    /**
+     * Returns the current card session. Read it once per request so that
+     * all its values belong together; compare generations to tell whether
+     * an AID picked up earlier is still current.
+     */
+    protected IccCardSession
+    getCardSession() {
+        IccCardSession session = mCardSession;
+        return session != null ? session : IccCardSession.EMPTY;
+    }
+
+    /**
+     * Returns the SIM_IO read cache, or null if disabled through
+     * ro.telephony.jsr.iccio_cache_kb=0. ro.telephony.jsr.iccio_readahead
+     * sets how many records it reads ahead, 0 to disable.
+     */
+    protected IccIoCache
+    getIccIoCache() {
+        IccIoCache cache = mIccIoCache;
+        if (cache == null) {
+            int kb = SystemProperties.getInt("ro.telephony.jsr.iccio_cache_kb", 16);
+            if (kb <= 0) {
+                return null;
+            }
+            synchronized (this) {
+                cache = mIccIoCache;
+                if (cache == null) {
+                    cache = new IccIoCache(getIccHandler().getLooper(), kb * 1024,
+                            SystemProperties.getInt("ro.telephony.jsr.iccio_readahead", 4),
+                            new IccIoCache.Sender() {
+                        @Override
+                        public void send(IccIoCache.Key key, Message result) {
+                            sendIccIO(key.command, key.fileid, key.path, key.p1, key.p2,
+                                    key.p3, null, null, key.aid, result);
+                        }
+                    });
+                    mIccIoCache = cache;
+                }
+            }
+        }
+        return cache;
+    }
+
+    private void
+    invalidateIccIoCache() {
+        if (mIccIoCache != null) {
+            mIccIoCache.invalidate();
+        }
+    }
+
+    private IccCardStatusDecoder
+    getIccCardStatusDecoder() {
+        // Created lazily: responses can arrive before our constructor has run
+        if (mIccCardStatusDecoder == null) {
+            mIccCardStatusDecoder = new IccCardStatusDecoder(
+                    SystemProperties.getBoolean("ro.telephony.jsr.iccstatus_reuse", true),
+                    needsOldRilFeature("skippinpukcount"));
+        }
+        return mIccCardStatusDecoder;
+    }
+
 // ------------------------------------------------------------------------------------
     
+    /**
+     * Handles one unsolicited response on behalf of processUnsolicited.
+     * The parcel is positioned right after the response id.
+     */
+    protected interface UnsolicitedHandler {
+        /**
+         * @return false to hand the response on to RIL untouched
+         */
+        boolean handle(Parcel p, int response);
+    }
+
     @Override
     protected void
     processUnsolicited (Parcel p) {
-        Object ret;
+        long start = SystemClock.elapsedRealtimeNanos();
         int dataPosition = p.dataPosition(); // save off position within the Parcel
+        JsrRilTrace.Recorder recorder = getTraceRecorder();
+        if (recorder != null) {
+            recorder.record(JsrRilTrace.KIND_UNSOLICITED, p, dataPosition);
+        }
         int response = p.readInt();
 
-        // Assume devices needing the "datacall" GB-compatibility flag are
-        // running GB RILs, so skip 1031-1034 for those
-        if (needsOldRilFeature("datacall")) {
-            switch(response) {
-                 case RIL_UNSOL_CDMA_SUBSCRIPTION_SOURCE_CHANGED:
-                 case RIL_UNSOl_CDMA_PRL_CHANGED:
-                 case RIL_UNSOL_EXIT_EMERGENCY_CALLBACK_MODE:
-                 case RIL_UNSOL_RIL_CONNECTED:
-                     if (RILJ_LOGD) riljLog("[JSR] processUnsolicited: SKIP req = " + responseToString(response) + " (" + response + ")");
-                     ret = responseVoid(p);
-                     return;
+        try {
+            UnsolicitedHandler handler = getUnsolicitedHandlers().get(response);
+            if (handler != null && handler.handle(p, response)) {
+                return;
             }
+
+            // Rewind the Parcel
+            p.setDataPosition(dataPosition);
+
+            // Forward responses that we are not overriding to the super class
+            super.processUnsolicited(p);
+        } finally {
+            getMetrics().onUnsolicited(response, SystemClock.elapsedRealtimeNanos() - start);
         }
+    }
 
-        switch(response) {
-            case RIL_UNSOL_RESPONSE_RADIO_STATE_CHANGED: ret =  responseVoid(p); break;
-            case RIL_UNSOL_RIL_CONNECTED: ret = responseInts(p); break;
-            case RIL_UNSOL_EXIT_EMERGENCY_CALLBACK_MODE: ret = responseVoid(p); break;
+    @Override
+    protected RILRequest
+    processSolicited (Parcel p) {
+        int dataPosition = p.dataPosition();
+        JsrRilTrace.Recorder recorder = getTraceRecorder();
+        if (recorder != null) {
+            recorder.record(JsrRilTrace.KIND_SOLICITED, p, dataPosition);
+        }
+        int serial = p.readInt();
+        p.setDataPosition(dataPosition);
 
-            default:
-                // Rewind the Parcel
-                p.setDataPosition(dataPosition);
+        RILRequest rr = super.processSolicited(p);
+        getMetrics().onResponse(serial);
+        return rr;
+    }
 
-                // Forward responses that we are not overriding to the super class
-                super.processUnsolicited(p);
-                return;
+    @Override
+    protected void
+    send(RILRequest rr) {
+        getMetrics().onRequestSent(rr.mSerial, rr.mRequest);
+        super.send(rr);
+    }
+
+    protected JsrRilMetrics
+    getMetrics() {
+        JsrRilMetrics metrics = mMetrics;
+        if (metrics == null) {
+            // Requests can go out before our constructor has run
+            synchronized (this) {
+                metrics = mMetrics;
+                if (metrics == null) {
+                    metrics = new JsrRilMetrics();
+                    mMetrics = metrics;
+                }
+            }
         }
+        return metrics;
+    }
 
-        if (RILJ_LOGD) riljLog("[JSR] processUnsolicited: req = " + responseToString(response) + " (" + response + ")");
-        
-        switch(response) {
-            case RIL_UNSOL_RESPONSE_RADIO_STATE_CHANGED:
+    private SparseArray<UnsolicitedHandler>
+    getUnsolicitedHandlers() {
+        SparseArray<UnsolicitedHandler> handlers = mUnsolicitedHandlers;
+        if (handlers == null) {
+            // Built by the constructor, unless the receiver thread gets here first
+            synchronized (this) {
+                handlers = mUnsolicitedHandlers;
+                if (handlers == null) {
+                    handlers = new SparseArray<UnsolicitedHandler>();
+                    onRegisterUnsolicitedHandlers(handlers);
+                    mUnsolicitedHandlers = handlers;
+                }
+            }
+        }
+        return handlers;
+    }
+
+    /**
+     * Fills the unsolicited response table. Called once per instance;
+     * subclasses add or replace handlers after calling through to super.
+     */
+    protected void
+    onRegisterUnsolicitedHandlers (SparseArray<UnsolicitedHandler> handlers) {
+        handlers.put(RIL_UNSOL_RESPONSE_RADIO_STATE_CHANGED, new UnsolicitedHandler() {
+            @Override
+            public boolean handle(Parcel p, int response) {
+                logUnsolicited(response);
                 int state = p.readInt();
                 setRadioStateFromRILInt(state);
-                break;
-
-            case RIL_UNSOL_RIL_CONNECTED:
-                if (RILJ_LOGD) unsljLogRet(response, ret);
-                // Initial conditions
-                setRadioPower(false, null);
-                setPreferredNetworkType(mPreferredNetworkType, null);
-                setCdmaSubscriptionSource(mCdmaSubscription, null);
+                return true;
+            }
+        });
+
+        handlers.put(RIL_UNSOL_RIL_CONNECTED, new UnsolicitedHandler() {
+            @Override
+            public boolean handle(Parcel p, int response) {
+                Object ret = responseInts(p);
+                logUnsolicited(response);
+                if (sLog.isDebug()) unsljLogRet(response, ret);
+                getInitialConditions().start(mPreferredNetworkType, mCdmaSubscription);
+                // Pick the card application while the radio comes up
+                getIccHandler().pollEarly();
                 notifyRegistrantsRilConnectionChanged(((int[])ret)[0]);
-                break;
+                return true;
+            }
+        });
 
-            case RIL_UNSOL_EXIT_EMERGENCY_CALLBACK_MODE:
-                if (RILJ_LOGD) unsljLogRet(response, ret);
+        handlers.put(RIL_UNSOL_EXIT_EMERGENCY_CALLBACK_MODE, new UnsolicitedHandler() {
+            @Override
+            public boolean handle(Parcel p, int response) {
+                logUnsolicited(response);
+                if (sLog.isDebug()) unsljLogRet(response, null);
                 if (mExitEmergencyCallbackModeRegistrants != null)
                     mExitEmergencyCallbackModeRegistrants.notifyRegistrants(new AsyncResult (null, null, null));
-                break;
+                return true;
+            }
+        });
+
+        handlers.put(RIL_UNSOL_SIM_REFRESH, new UnsolicitedHandler() {
+            @Override
+            public boolean handle(Parcel p, int response) {
+                invalidateIccIoCache();
+                // RIL still delivers the refresh
+                return false;
+            }
+        });
+
+        // Assume devices needing the "datacall" GB-compatibility flag are
+        // running GB RILs, so skip 1031-1034 for those
+        if (needsOldRilFeature("datacall")) {
+            UnsolicitedHandler skip = new UnsolicitedHandler() {
+                @Override
+                public boolean handle(Parcel p, int response) {
+                    if (sLog.isDebug()) riljLog("[JSR] processUnsolicited: SKIP req = " + responseToString(response) + " (" + response + ")");
+                    return true;
+                }
+            };
+            handlers.put(RIL_UNSOL_CDMA_SUBSCRIPTION_SOURCE_CHANGED, skip);
+            handlers.put(RIL_UNSOl_CDMA_PRL_CHANGED, skip);
+            handlers.put(RIL_UNSOL_EXIT_EMERGENCY_CALLBACK_MODE, skip);
+            handlers.put(RIL_UNSOL_RIL_CONNECTED, skip);
         }
     }
 
+    private void
+    logUnsolicited (int response) {
+        sLog.unsolicited(getInstance(), response, null);
+    }
+
     protected void
     setRadioStateFromRILInt (int stateCode) {
         CommandsInterface.RadioState radioState;
-        HandlerThread handlerThread;
-        Looper looper;
-        IccHandler iccHandler;
 
         switch (stateCode) {
             case RIL_INT_RADIO_OFF:
                 radioState = CommandsInterface.RadioState.RADIO_OFF;
                 Rlog.w(RILJ_LOG_TAG, "[JSR] set RIL_INT_RADIO_OFF");
                 if (mIccHandler != null) {
-                    mIccThread = null;
-                    mIccHandler = null;
+                    mIccHandler.quiesce();
                 }
                 break;
             case RIL_INT_RADIO_UNAVAILABLE:
                 Rlog.w(RILJ_LOG_TAG, "[JSR] set RIL_INT_RADIO_UNAVAILABLE");
                 radioState = CommandsInterface.RadioState.RADIO_UNAVAILABLE;
+                if (mIccHandler != null) {
+                    mIccHandler.quiesce();
+                }
                 break;
             case RIL_INT_RADIO_ON:
             case RIL_INT_RADIO_ON_NG:
             case RIL_INT_RADIO_ON_HTC:
                 Rlog.w(RILJ_LOG_TAG, "[JSR] set RIL_INT_RADIO_ON");
-                if (mIccHandler == null) {
-                    handlerThread = new HandlerThread("IccHandler");
-                    mIccThread = handlerThread;
-
-                    mIccThread.start();
-
-                    looper = mIccThread.getLooper();
-                    mIccHandler = new IccHandler(this,looper);
-                    mIccHandler.run();
-                }
+                getIccHandler().arm();
                 radioState = CommandsInterface.RadioState.RADIO_ON;
                 break;
             default:
                 throw new RuntimeException("Unrecognized RIL_RadioState: " + stateCode);
         }
 
-        setRadioState (radioState);
+        getRadioStateFilter().submit(radioState, stateCode);
+    }
+
+    /**
+     * Returns the filter all JSR radio state changes go through. A holdoff
+     * against flapping can be set with ro.telephony.jsr.radio_holdoff_ms.
+     */
+    protected synchronized RadioStateFilter
+    getRadioStateFilter() {
+        if (mRadioStateFilter == null) {
+            mRadioStateFilter = new RadioStateFilter(this, getIccHandler().getLooper(),
+                    SystemProperties.getInt("ro.telephony.jsr.radio_holdoff_ms", 0));
+        }
+        return mRadioStateFilter;
+    }
+
+    /**
+     * Returns the initial conditions sequence run on each RIL_CONNECTED.
+     */
+    protected synchronized InitialConditions
+    getInitialConditions() {
+        if (mInitialConditions == null) {
+            mInitialConditions = new InitialConditions(this, getIccHandler().getLooper());
+        }
+        return mInitialConditions;
+    }
+
+    /**
+     * Returns the ICC worker of this instance. The worker lives as long as
+     * this RIL and is armed and quiesced as the radio goes on and off.
+     */
+    protected synchronized IccHandler
+    getIccHandler() {
+        if (mIccHandler == null) {
+            mIccThread = getIccThread(getInstance());
+            mIccHandler = new IccHandler(this, mIccThread.getLooper());
+        }
+        return mIccHandler;
+    }
+
+    /**
+     * Returns the worker thread for an instance, starting it on first use.
+     * All instances share a pool of ro.telephony.jsr.icc_threads (default
+     * 2) threads, so on dual SIM devices each slot gets its own thread and
+     * one slot's SIM load never queues behind the other's.
+     */
+    private static HandlerThread
+    getIccThread(int instance) {
+        synchronized (sIccThreadLock) {
+            if (sIccThreads == null) {
+                sIccThreads = new HandlerThread[Math.max(1,
+                        SystemProperties.getInt("ro.telephony.jsr.icc_threads", 2))];
+            }
+            int index = Math.max(instance, 0) % sIccThreads.length;
+            if (sIccThreads[index] == null) {
+                HandlerThread thread = new HandlerThread("JsrIcc-" + index);
+                thread.start();
+                sIccThreads[index] = thread;
+            }
+            return sIccThreads[index];
+        }
     }
     
 // ------------------------------------------------------------------------------------
     
-    class IccHandler extends Handler implements Runnable {
+    class IccHandler extends Handler {
         private static final int EVENT_RADIO_ON = 1;
         private static final int EVENT_ICC_STATUS_CHANGED = 2;
         private static final int EVENT_GET_ICC_STATUS_DONE = 3;
         private static final int EVENT_RADIO_OFF_OR_UNAVAILABLE = 4;
+        private static final int EVENT_POLL_ICC_STATUS = 5;
+        private static final int EVENT_EARLY_POLL = 6;
 
         private RIL mRil;
         private boolean mRadioOn = false;
+        private volatile boolean mArmed = false;
+
+        // At most one GET_SIM_STATUS is outstanding; status changes seen
+        // meanwhile are folded into a single follow-up poll.
+        private boolean mPollInFlight = false;
+        private boolean mPollPending = false;
+        private final long mDebounceMs;
 
         public IccHandler (RIL ril, Looper looper) {
             super (looper);
             mRil = ril;
+            mDebounceMs = SystemProperties.getInt("ro.telephony.jsr.icc_debounce_ms", 0);
         }
 
         public void handleMessage (Message paramMessage) {
             switch (paramMessage.what) {
                 case EVENT_RADIO_ON:
+                    if (!mArmed) {
+                        // Radio went off again before the first status came back
+                        break;
+                    }
                     mRadioOn = true;
-                    Log.d(RILJ_LOG_TAG, "[JSR] Radio on -> Forcing sim status update");
+                    if (sLog.isDebug()) Log.d(RILJ_LOG_TAG, "[JSR] Radio on -> Forcing sim status update");
                     sendMessage(obtainMessage(EVENT_ICC_STATUS_CHANGED));
                     break;
 
                 case EVENT_ICC_STATUS_CHANGED:
                     if (mRadioOn) {
-                        Log.d(RILJ_LOG_TAG, "[JSR] Received EVENT_ICC_STATUS_CHANGED, calling getIccCardStatus");
-                        mRil.getIccCardStatus(obtainMessage(EVENT_GET_ICC_STATUS_DONE, paramMessage.obj));
+                        if (sLog.isDebug()) Log.d(RILJ_LOG_TAG, "[JSR] Received EVENT_ICC_STATUS_CHANGED, scheduling getIccCardStatus");
+                        schedulePoll();
                     } else {
-                        Log.d(RILJ_LOG_TAG, "[JSR] Received EVENT_ICC_STATUS_CHANGED while radio is not ON. Ignoring");
+                        if (sLog.isDebug()) Log.d(RILJ_LOG_TAG, "[JSR] Received EVENT_ICC_STATUS_CHANGED while radio is not ON. Ignoring");
+                    }
+                    break;
+
+                case EVENT_POLL_ICC_STATUS:
+                    if (!mRadioOn) {
+                        break;
                     }
+                    if (mPollInFlight) {
+                        mPollPending = true;
+                        break;
+                    }
+                    if (sLog.isDebug()) Log.d(RILJ_LOG_TAG, "[JSR] calling getIccCardStatus");
+                    mPollInFlight = true;
+                    mRil.getIccCardStatus(obtainMessage(EVENT_GET_ICC_STATUS_DONE));
                     break;
                     
+                case EVENT_EARLY_POLL:
+                    // Only responseIccCardStatus sees the result, as the
+                    // radio is not on yet
+                    if (mPollInFlight) {
+                        break;
+                    }
+                    if (sLog.isDebug()) Log.d(RILJ_LOG_TAG, "[JSR] calling getIccCardStatus before radio on");
+                    mPollInFlight = true;
+                    mRil.getIccCardStatus(obtainMessage(EVENT_GET_ICC_STATUS_DONE));
+                    break;
+
                 case EVENT_GET_ICC_STATUS_DONE:
                     Rlog.w(RILJ_LOG_TAG, "[JSR] EVENT_GET_ICC_STATUS_DONE");
+                    mPollInFlight = false;
+                    if (!mRadioOn) {
+                        break;
+                    }
+                    if (mPollPending) {
+                        mPollPending = false;
+                        schedulePoll();
+                    }
                     AsyncResult asyncResult = (AsyncResult) paramMessage.obj;
                     if (asyncResult.exception != null) {
                         Log.e (RILJ_LOG_TAG, "[JSR] IccCardStatusDone shouldn't return exceptions!", asyncResult.exception);
@@ -425,18 +838,15 @@ public class JSRQualcommRIL extends RIL implements CommandsInterface {
                     }
                     IccCardStatus status = (IccCardStatus) asyncResult.result;
                     if (status.mApplications == null || status.mApplications.length == 0) {
-                        if (!mRil.getRadioState().isOn()) {
-                            break;
-                        }
-                        mRil.setRadioState(CommandsInterface.RadioState.RADIO_ON);
+                        reassertRadioOn();
                     } else {
                         int appIndex = -1;
                         if (mPhoneType == RILConstants.CDMA_PHONE && status.mCdmaSubscriptionAppIndex >= 0) {
                             appIndex = status.mCdmaSubscriptionAppIndex;
-                            Log.d(RILJ_LOG_TAG, "[JSR] This is a CDMA PHONE: " + appIndex);
+                            if (sLog.isDebug()) Log.d(RILJ_LOG_TAG, "[JSR] This is a CDMA PHONE: " + appIndex);
                         } else {
                             appIndex = status.mGsmUmtsSubscriptionAppIndex;
-                            Log.d(RILJ_LOG_TAG, "[JSR] This is a GSM PHONE: " + appIndex);
+                            if (sLog.isDebug()) Log.d(RILJ_LOG_TAG, "[JSR] This is a GSM PHONE: " + appIndex);
                             if (appIndex < 0) appIndex = 0;  // fixme
                         }
 
@@ -451,7 +861,7 @@ public class JSRQualcommRIL extends RIL implements CommandsInterface {
                                     case APPTYPE_SIM:
                                     case APPTYPE_USIM:
                                     case APPTYPE_RUIM:
-                                        mRil.setRadioState(CommandsInterface.RadioState.RADIO_ON);
+                                        reassertRadioOn();
                                         break;
                                     default:
                                         Log.e(RILJ_LOG_TAG, "[JSR] Currently we don't handle SIMs of type: " + app_type);
@@ -463,7 +873,8 @@ public class JSRQualcommRIL extends RIL implements CommandsInterface {
                                     case APPTYPE_SIM:
                                     case APPTYPE_USIM:
                                     case APPTYPE_RUIM:
-                                        mRil.setRadioState(CommandsInterface.RadioState.RADIO_ON);
+                                        getInitialConditions().onSimReady();
+                                        reassertRadioOn();
                                         break;
                                     default:
                                         Log.e(RILJ_LOG_TAG, "[JSR] Currently we don't handle SIMs of type: " + app_type);
@@ -479,6 +890,8 @@ public class JSRQualcommRIL extends RIL implements CommandsInterface {
                 case EVENT_RADIO_OFF_OR_UNAVAILABLE:
                     Rlog.w(RILJ_LOG_TAG, "[JSR] EVENT_RADIO_OFF_OR_UNAVAILABLE");
                     mRadioOn = false;
+                    mPollPending = false;
+                    removeMessages(EVENT_POLL_ICC_STATUS);
                     // disposeCards(); // to be verified;
                     break;
                     
@@ -488,11 +901,58 @@ public class JSRQualcommRIL extends RIL implements CommandsInterface {
             }
         }
 
-        public void run () {
+        /**
+         * Re-asserts RADIO_ON after a SIM status read, unless the framework
+         * already sees the radio as off. The filter also never lets this
+         * override a state reported by the modem that is still deferred.
+         */
+        private void reassertRadioOn() {
+            if (mRil.getRadioState().isOn()) {
+                getRadioStateFilter().submit(CommandsInterface.RadioState.RADIO_ON,
+                        RadioStateFilter.SOURCE_ICC);
+            }
+        }
+
+        private void schedulePoll() {
+            if (mPollInFlight) {
+                mPollPending = true;
+            } else if (!hasMessages(EVENT_POLL_ICC_STATUS)) {
+                sendEmptyMessageDelayed(EVENT_POLL_ICC_STATUS, mDebounceMs);
+            }
+        }
+
+        /**
+         * Reads the SIM status once, whatever the radio state, unless a
+         * read is already in flight.
+         */
+        public void pollEarly () {
+            sendEmptyMessage(EVENT_EARLY_POLL);
+        }
+
+        /**
+         * Starts tracking the card. Does nothing if already armed.
+         */
+        public synchronized void arm () {
+            if (mArmed) {
+                return;
+            }
+            mArmed = true;
             mRil.registerForIccStatusChanged(this, EVENT_ICC_STATUS_CHANGED, null);
             Message msg = obtainMessage(EVENT_RADIO_ON);
             mRil.getIccCardStatus(msg);
         }
+
+        /**
+         * Stops tracking the card until the next {@link #arm}.
+         */
+        public synchronized void quiesce () {
+            if (!mArmed) {
+                return;
+            }
+            mArmed = false;
+            mRil.unregisterForIccStatusChanged(this);
+            sendMessage(obtainMessage(EVENT_RADIO_OFF_OR_UNAVAILABLE));
+        }
     }
  
 }
@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.os.SystemClock;
+import android.os.SystemProperties;
+import android.telephony.Rlog;
+import android.util.Log;
+
+import java.io.PrintWriter;
+
+/**
+ * Logging for the JSR RILs.
+ *
+ * The level comes from persist.radio.jsr.loglevel (verbose, debug, info,
+ * warn or none) and is re-read whenever system properties change.
+ * Callers check {@link #isDebug()} or {@link #isVerbose()} before
+ * building a message, or pass raw values to {@link #request} and
+ * {@link #unsolicited}, which only format them if they are emitted.
+ *
+ * With persist.radio.jsr.logring set to a record count, request and
+ * unsolicited records go to an in-memory ring instead of logcat. The
+ * ring holds raw ids and arguments and is formatted only when dumped.
+ *
+ * {@hide}
+ */
+class JsrRilLog {
+    static final String LOG_TAG = "RILJ";
+
+    static final String PROP_LEVEL = "persist.radio.jsr.loglevel";
+    static final String PROP_RING = "persist.radio.jsr.logring";
+
+    private static final int MAX_RING_SIZE = 4096;
+    private static final int ARGS = 5;
+
+    private static final byte KIND_REQUEST = 1;
+    private static final byte KIND_UNSOLICITED = 2;
+
+    private volatile int mLevel;
+
+    // Ring buffer, allocated once for the configured size
+    private volatile int mRingSize;
+    private long[] mTimes;
+    private byte[] mKinds;
+    private byte[] mArgc;
+    private int[] mInstances;
+    private int[] mSerials;
+    private int[] mIds;
+    private int[] mArgs;
+    private Object[] mExtras;
+    private int mNext;
+    private int mCount;
+
+    JsrRilLog() {
+        refresh();
+        SystemProperties.addChangeCallback(new Runnable() {
+            @Override
+            public void run() {
+                refresh();
+            }
+        });
+    }
+
+    void refresh() {
+        String level = SystemProperties.get(PROP_LEVEL,
+                SystemProperties.getBoolean("ro.debuggable", false) ? "debug" : "info");
+        if ("verbose".equals(level)) {
+            mLevel = Log.VERBOSE;
+        } else if ("debug".equals(level)) {
+            mLevel = Log.DEBUG;
+        } else if ("warn".equals(level)) {
+            mLevel = Log.WARN;
+        } else if ("none".equals(level)) {
+            mLevel = Log.ASSERT + 1;
+        } else {
+            mLevel = Log.INFO;
+        }
+        setRingSize(Math.min(SystemProperties.getInt(PROP_RING, 0), MAX_RING_SIZE));
+    }
+
+    boolean isVerbose() {
+        return mLevel <= Log.VERBOSE;
+    }
+
+    boolean isDebug() {
+        return mLevel <= Log.DEBUG;
+    }
+
+    /**
+     * Records an outgoing request with up to five integer arguments and
+     * two arbitrary values, which are only turned into text if logged.
+     */
+    void request(int instance, int serial, int request, int a0, int a1, int a2, int a3, int a4,
+            Object extra0, Object extra1) {
+        log(KIND_REQUEST, instance, serial, request, ARGS, a0, a1, a2, a3, a4, extra0, extra1);
+    }
+
+    void request(int instance, int serial, int request, Object extra) {
+        log(KIND_REQUEST, instance, serial, request, 0, 0, 0, 0, 0, 0, extra, null);
+    }
+
+    void unsolicited(int instance, int response, Object extra) {
+        log(KIND_UNSOLICITED, instance, 0, response, 0, 0, 0, 0, 0, 0, extra, null);
+    }
+
+    private void log(byte kind, int instance, int serial, int id, int argc,
+            int a0, int a1, int a2, int a3, int a4, Object extra0, Object extra1) {
+        if (mRingSize > 0) {
+            record(kind, instance, serial, id, argc, a0, a1, a2, a3, a4, extra0, extra1);
+        } else if (isDebug()) {
+            Rlog.d(LOG_TAG, format(kind, instance, serial, id, argc,
+                    a0, a1, a2, a3, a4, extra0, extra1));
+        }
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println(" JsrRilLog: level=" + mLevel + " ring=" + mCount + "/" + mRingSize);
+        long now = SystemClock.elapsedRealtime();
+        int start = (mNext - mCount + mRingSize) % Math.max(mRingSize, 1);
+        for (int i = 0; i < mCount; i++) {
+            int slot = (start + i) % mRingSize;
+            int a = slot * ARGS;
+            pw.println("  -" + (now - mTimes[slot]) + "ms " + format(mKinds[slot],
+                    mInstances[slot], mSerials[slot], mIds[slot], mArgc[slot],
+                    mArgs[a], mArgs[a + 1], mArgs[a + 2], mArgs[a + 3], mArgs[a + 4],
+                    mExtras[slot * 2], mExtras[slot * 2 + 1]));
+        }
+    }
+
+    private synchronized void setRingSize(int size) {
+        if (size < 0) {
+            size = 0;
+        }
+        if (size == mRingSize) {
+            return;
+        }
+        mRingSize = size;
+        mTimes = new long[size];
+        mKinds = new byte[size];
+        mArgc = new byte[size];
+        mInstances = new int[size];
+        mSerials = new int[size];
+        mIds = new int[size];
+        mArgs = new int[size * ARGS];
+        mExtras = new Object[size * 2];
+        mNext = 0;
+        mCount = 0;
+    }
+
+    private synchronized void record(byte kind, int instance, int serial, int id, int argc,
+            int a0, int a1, int a2, int a3, int a4, Object extra0, Object extra1) {
+        if (mRingSize == 0) {
+            return;
+        }
+        int slot = mNext;
+        int a = slot * ARGS;
+        mTimes[slot] = SystemClock.elapsedRealtime();
+        mKinds[slot] = kind;
+        mArgc[slot] = (byte) argc;
+        mInstances[slot] = instance;
+        mSerials[slot] = serial;
+        mIds[slot] = id;
+        mArgs[a] = a0;
+        mArgs[a + 1] = a1;
+        mArgs[a + 2] = a2;
+        mArgs[a + 3] = a3;
+        mArgs[a + 4] = a4;
+        mExtras[slot * 2] = extra0;
+        mExtras[slot * 2 + 1] = extra1;
+        mNext = (slot + 1) % mRingSize;
+        if (mCount < mRingSize) {
+            mCount++;
+        }
+    }
+
+    private static String format(byte kind, int instance, int serial, int id, int argc,
+            int a0, int a1, int a2, int a3, int a4, Object extra0, Object extra1) {
+        StringBuilder sb = new StringBuilder();
+        if (kind == KIND_REQUEST) {
+            sb.append('[').append(serial).append("]> ").append(RIL.requestToString(id));
+            int[] args = { a0, a1, a2, a3, a4 };
+            for (int i = 0; i < argc; i++) {
+                sb.append(i == 0 ? " " : ",").append("0x").append(Integer.toHexString(args[i]));
+            }
+        } else {
+            sb.append("[UNSL]< ").append(RIL.responseToString(id));
+        }
+        if (extra0 != null) {
+            sb.append(' ').append(extra0);
+        }
+        if (extra1 != null) {
+            sb.append(' ').append(extra1);
+        }
+        if (instance >= 0) {
+            sb.append(" [SUB").append(instance).append(']');
+        }
+        return sb.toString();
+    }
+}
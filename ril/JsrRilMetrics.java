@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.os.SystemClock;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Per request type counters and latency histograms for the JSR RILs.
+ *
+ * Solicited requests are timed from send() until their response is
+ * processed; unsolicited responses are timed while they are processed.
+ * Recording uses only atomic operations on preallocated arrays, so it
+ * never takes a lock or allocates once a type has been seen.
+ *
+ * {@hide}
+ */
+class JsrRilMetrics {
+    // Ids are mapped into a dense table: requests, unsolicited responses
+    // and the OEM ranges of each get their own block.
+    private static final int BLOCK = 512;
+    private static final int[] BLOCK_BASES = { 0, 1000, 10000, 11000 };
+
+    // Outstanding requests are tracked by serial in a small ring
+    private static final int PENDING = 256;
+
+    static final class Histogram {
+        // Log-linear buckets: 8 sub-buckets per power of two, in microseconds
+        private static final int SUB_BITS = 3;
+        private static final int SUB_COUNT = 1 << SUB_BITS;
+        private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_COUNT;
+
+        private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong mTotal = new AtomicLong();
+        private final AtomicLong mSum = new AtomicLong();
+        private final AtomicLong mMax = new AtomicLong();
+
+        void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            mCounts.incrementAndGet(bucketOf(value));
+            mTotal.incrementAndGet();
+            mSum.addAndGet(value);
+            long max;
+            while (value > (max = mMax.get()) && !mMax.compareAndSet(max, value)) {
+            }
+        }
+
+        long count() {
+            return mTotal.get();
+        }
+
+        long mean() {
+            long count = mTotal.get();
+            return count > 0 ? mSum.get() / count : 0;
+        }
+
+        long max() {
+            return mMax.get();
+        }
+
+        /**
+         * Returns the upper bound of the bucket holding the given
+         * percentile.
+         */
+        long percentile(double percentile) {
+            long count = mTotal.get();
+            if (count == 0) {
+                return 0;
+            }
+            long target = (long) Math.ceil(count * percentile / 100.0);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += mCounts.get(i);
+                if (seen >= target) {
+                    return Math.min(upperBoundOf(i), mMax.get());
+                }
+            }
+            return mMax.get();
+        }
+
+        private static int bucketOf(long value) {
+            if (value < SUB_COUNT) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+            return (exponent - SUB_BITS + 1) * SUB_COUNT + sub;
+        }
+
+        private static long upperBoundOf(int bucket) {
+            if (bucket < SUB_COUNT) {
+                return bucket;
+            }
+            int exponent = bucket / SUB_COUNT + SUB_BITS - 1;
+            int sub = bucket % SUB_COUNT;
+            long base = (long) (SUB_COUNT + sub) << (exponent - SUB_BITS);
+            return base + (1L << (exponent - SUB_BITS)) - 1;
+        }
+    }
+
+    static final class Stats {
+        final int id;
+        final AtomicLong count = new AtomicLong();
+        final AtomicInteger inFlight = new AtomicInteger();
+        final Histogram latency = new Histogram();
+
+        Stats(int id) {
+            this.id = id;
+        }
+    }
+
+    private final AtomicReferenceArray<Stats> mStats =
+            new AtomicReferenceArray<Stats>(BLOCK * BLOCK_BASES.length);
+
+    private final AtomicIntegerArray mPendingSerials = new AtomicIntegerArray(PENDING);
+    private final AtomicIntegerArray mPendingRequests = new AtomicIntegerArray(PENDING);
+    private final AtomicLongArray mPendingTimes = new AtomicLongArray(PENDING);
+
+    private final long mCreated = SystemClock.elapsedRealtime();
+
+    void onRequestSent(int serial, int request) {
+        Stats stats = getStats(request);
+        if (stats == null) {
+            return;
+        }
+        stats.count.incrementAndGet();
+        stats.inFlight.incrementAndGet();
+
+        int slot = serial & (PENDING - 1);
+        if (mPendingSerials.getAndSet(slot, 0) != 0) {
+            // The request in this slot never got a response; stop counting it
+            Stats lost = getStats(mPendingRequests.get(slot));
+            if (lost != null) {
+                lost.inFlight.decrementAndGet();
+            }
+        }
+        mPendingRequests.set(slot, request);
+        mPendingTimes.set(slot, SystemClock.elapsedRealtimeNanos());
+        mPendingSerials.set(slot, serial + 1);
+    }
+
+    void onResponse(int serial) {
+        int slot = serial & (PENDING - 1);
+        // Serials are stored off by one so that an empty slot reads 0
+        if (!mPendingSerials.compareAndSet(slot, serial + 1, 0)) {
+            // Never sent through us, or overwritten by a newer request
+            return;
+        }
+        long elapsed = SystemClock.elapsedRealtimeNanos() - mPendingTimes.get(slot);
+        Stats stats = getStats(mPendingRequests.get(slot));
+        if (stats != null) {
+            stats.inFlight.decrementAndGet();
+            stats.latency.record(elapsed / 1000);
+        }
+    }
+
+    void onUnsolicited(int response, long elapsedNanos) {
+        Stats stats = getStats(response);
+        if (stats != null) {
+            stats.count.incrementAndGet();
+            stats.latency.record(elapsedNanos / 1000);
+        }
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println(" JsrRilMetrics: uptime=" + (SystemClock.elapsedRealtime() - mCreated) + "ms"
+                + " (latency in us)");
+        for (int i = 0; i < mStats.length(); i++) {
+            Stats stats = mStats.get(i);
+            if (stats == null) {
+                continue;
+            }
+            int block = i / BLOCK;
+            boolean solicited = block == 0 || block == 2;
+            Histogram h = stats.latency;
+            pw.println("  " + (solicited ? RIL.requestToString(stats.id)
+                            : RIL.responseToString(stats.id))
+                    + " (" + stats.id + "): count=" + stats.count.get()
+                    + (solicited ? " inflight=" + stats.inFlight.get() : "")
+                    + " n=" + h.count()
+                    + " mean=" + h.mean()
+                    + " p50=" + h.percentile(50)
+                    + " p90=" + h.percentile(90)
+                    + " p99=" + h.percentile(99)
+                    + " max=" + h.max());
+        }
+    }
+
+    void writeTo(File file) throws IOException {
+        PrintWriter pw = new PrintWriter(new FileWriter(file));
+        try {
+            dump(pw);
+        } finally {
+            pw.close();
+        }
+    }
+
+    private Stats getStats(int id) {
+        int index = indexOf(id);
+        if (index < 0) {
+            return null;
+        }
+        Stats stats = mStats.get(index);
+        if (stats == null) {
+            mStats.compareAndSet(index, null, new Stats(id));
+            stats = mStats.get(index);
+        }
+        return stats;
+    }
+
+    private static int indexOf(int id) {
+        for (int i = 0; i < BLOCK_BASES.length; i++) {
+            int offset = id - BLOCK_BASES[i];
+            if (offset >= 0 && offset < BLOCK) {
+                return i * BLOCK + offset;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.os.Parcel;
+import android.os.SystemClock;
+import android.telephony.Rlog;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Binary trace of the parcels seen by the JSR RILs.
+ *
+ * A trace starts with a magic number and a version, followed by one
+ * record per parcel:
+ *
+ *   byte  kind       KIND_SOLICITED, KIND_UNSOLICITED or KIND_ICC_STATUS
+ *   long  time       elapsedRealtimeNanos when the parcel was seen
+ *   int   position   data position at which the RIL started reading
+ *   int   length     length of the marshalled parcel
+ *   byte[length]     the marshalled parcel
+ *
+ * {@hide}
+ */
+class JsrRilTrace {
+    static final String LOG_TAG = "RILJ";
+
+    static final int MAGIC = 0x4a535254; // "JSRT"
+    static final int VERSION = 1;
+
+    static final byte KIND_SOLICITED = 1;
+    static final byte KIND_UNSOLICITED = 2;
+    static final byte KIND_ICC_STATUS = 3;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int FLUSH_INTERVAL = 256;
+    private static final int MAX_RECORD_SIZE = 64 * 1024;
+
+    /**
+     * Appends parcels to a trace file.
+     */
+    static final class Recorder {
+        private final File mFile;
+        private DataOutputStream mOut;
+        private int mUnflushed;
+
+        Recorder(File file) throws IOException {
+            mFile = file;
+            mOut = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(file), BUFFER_SIZE));
+            mOut.writeInt(MAGIC);
+            mOut.writeInt(VERSION);
+        }
+
+        synchronized void record(byte kind, Parcel p, int position) {
+            if (mOut == null) {
+                return;
+            }
+            try {
+                byte[] data = p.marshall();
+                mOut.writeByte(kind);
+                mOut.writeLong(SystemClock.elapsedRealtimeNanos());
+                mOut.writeInt(position);
+                mOut.writeInt(data.length);
+                mOut.write(data);
+                if (++mUnflushed >= FLUSH_INTERVAL) {
+                    mOut.flush();
+                    mUnflushed = 0;
+                }
+            } catch (IOException e) {
+                Rlog.e(LOG_TAG, "[JSR] trace to " + mFile + " failed, stopping", e);
+                close();
+            } catch (RuntimeException e) {
+                // Parcels holding binders or fds can't be marshalled; skip them
+                Rlog.w(LOG_TAG, "[JSR] unable to trace parcel: " + e);
+            }
+        }
+
+        synchronized void flush() {
+            if (mOut == null) {
+                return;
+            }
+            try {
+                mOut.flush();
+                mUnflushed = 0;
+            } catch (IOException e) {
+                Rlog.e(LOG_TAG, "[JSR] trace flush failed", e);
+            }
+        }
+
+        synchronized void close() {
+            if (mOut == null) {
+                return;
+            }
+            try {
+                mOut.close();
+            } catch (IOException e) {
+                // ignore
+            }
+            mOut = null;
+        }
+
+        File getFile() {
+            return mFile;
+        }
+    }
+
+    /**
+     * Receives the parcels of a trace being replayed. Each parcel is
+     * positioned where the RIL originally started reading it and is
+     * recycled once the call returns.
+     */
+    interface Sink {
+        void onSolicited(Parcel p);
+        void onUnsolicited(Parcel p);
+        void onIccCardStatus(Parcel p);
+    }
+
+    /**
+     * Replays a trace into a sink.
+     *
+     * @param speed 1 replays in real time, larger values compress time by
+     *        that factor, 0 or less replays as fast as possible
+     * @return the number of records replayed
+     */
+    static int replay(File file, Sink sink, float speed) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file), BUFFER_SIZE));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file + " is not a JSR RIL trace");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException(file + " has unsupported trace version " + version);
+            }
+
+            byte[] data = new byte[4096];
+            long firstTime = -1;
+            long startNanos = SystemClock.elapsedRealtimeNanos();
+            int records = 0;
+
+            while (true) {
+                byte kind;
+                try {
+                    kind = in.readByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                long time = in.readLong();
+                int position = in.readInt();
+                int length = in.readInt();
+                if (length < 0 || length > MAX_RECORD_SIZE) {
+                    throw new IOException("corrupt record " + records + " in " + file);
+                }
+                if (data.length < length) {
+                    data = new byte[length];
+                }
+                in.readFully(data, 0, length);
+
+                if (firstTime < 0) {
+                    firstTime = time;
+                }
+                if (speed > 0) {
+                    long due = startNanos + (long) ((time - firstTime) / speed);
+                    long wait = (due - SystemClock.elapsedRealtimeNanos()) / 1000000;
+                    if (wait > 0) {
+                        SystemClock.sleep(wait);
+                    }
+                }
+
+                Parcel p = Parcel.obtain();
+                try {
+                    p.unmarshall(data, 0, length);
+                    p.setDataPosition(position);
+                    switch (kind) {
+                        case KIND_SOLICITED: sink.onSolicited(p); break;
+                        case KIND_UNSOLICITED: sink.onUnsolicited(p); break;
+                        case KIND_ICC_STATUS: sink.onIccCardStatus(p); break;
+                        default:
+                            Rlog.w(LOG_TAG, "[JSR] skipping trace record of kind " + kind);
+                            break;
+                    }
+                } finally {
+                    p.recycle();
+                }
+                records++;
+            }
+            return records;
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+
+/**
+ * Sits in front of setRadioState for the JSR RILs.
+ *
+ * Transitions to the state the RIL is already in, or is already about to
+ * enter, are dropped without notifying anyone. With a holdoff set, a
+ * transition arriving sooner than that after the last one applied is
+ * deferred until the holdoff ends, and only the latest deferred state is
+ * applied then; if the radio flips back to its current state meanwhile,
+ * nothing is applied at all. Transitions from SIM status reads only
+ * re-assert what the RIL already believes, so they never replace or cancel
+ * a deferred state reported by the modem; they are folded instead.
+ *
+ * The last transitions are kept for dumpsys.
+ *
+ * {@hide}
+ */
+class RadioStateFilter extends Handler {
+    /** Source code for transitions not coming from RADIO_STATE_CHANGED */
+    static final int SOURCE_ICC = -1;
+
+    private static final int EVENT_APPLY_PENDING = 1;
+
+    private static final int HISTORY = 64;
+
+    private static final byte ACTION_APPLIED = 0;
+    private static final byte ACTION_FOLDED = 1;
+    private static final byte ACTION_DEFERRED = 2;
+    private static final byte ACTION_CANCELLED = 3;
+    private static final String[] ACTION_NAMES = { "applied", "folded", "deferred", "cancelled" };
+
+    private static final CommandsInterface.RadioState[] STATES =
+            CommandsInterface.RadioState.values();
+
+    private final BaseCommands mRil;
+    private final long mHoldoffMs;
+
+    private CommandsInterface.RadioState mPending;
+    private int mPendingCode;
+    private long mLastApplied = -1;
+
+    private final long[] mTimes = new long[HISTORY];
+    private final int[] mCodes = new int[HISTORY];
+    private final byte[] mStates = new byte[HISTORY];
+    private final byte[] mActions = new byte[HISTORY];
+    private int mNext;
+    private int mCount;
+    private final long[] mTotals = new long[ACTION_NAMES.length];
+
+    RadioStateFilter(BaseCommands ril, Looper looper, long holdoffMs) {
+        super(looper);
+        mRil = ril;
+        mHoldoffMs = Math.max(0, holdoffMs);
+    }
+
+    /**
+     * Requests a transition to the given state.
+     *
+     * @param code the RIL_RadioState it came from, or {@link #SOURCE_ICC}
+     */
+    synchronized void submit(CommandsInterface.RadioState state, int code) {
+        long now = SystemClock.elapsedRealtime();
+        CommandsInterface.RadioState current = mRil.getRadioState();
+
+        if (mPending != null) {
+            if (state == mPending
+                    || (code == SOURCE_ICC && mPendingCode != SOURCE_ICC)) {
+                record(now, code, state, ACTION_FOLDED);
+            } else if (state == current) {
+                // Flipped back before the deferred state was applied
+                mPending = null;
+                removeMessages(EVENT_APPLY_PENDING);
+                record(now, code, state, ACTION_CANCELLED);
+            } else {
+                mPending = state;
+                mPendingCode = code;
+                record(now, code, state, ACTION_DEFERRED);
+            }
+            return;
+        }
+
+        if (state == current) {
+            record(now, code, state, ACTION_FOLDED);
+            return;
+        }
+
+        if (mHoldoffMs > 0 && mLastApplied >= 0 && now - mLastApplied < mHoldoffMs) {
+            mPending = state;
+            mPendingCode = code;
+            sendEmptyMessageDelayed(EVENT_APPLY_PENDING, mLastApplied + mHoldoffMs - now);
+            record(now, code, state, ACTION_DEFERRED);
+            return;
+        }
+
+        apply(now, code, state);
+    }
+
+    @Override
+    public void handleMessage(Message msg) {
+        if (msg.what != EVENT_APPLY_PENDING) {
+            return;
+        }
+        synchronized (this) {
+            CommandsInterface.RadioState state = mPending;
+            mPending = null;
+            if (state == null) {
+                return;
+            }
+            long now = SystemClock.elapsedRealtime();
+            if (state == mRil.getRadioState()) {
+                record(now, mPendingCode, state, ACTION_FOLDED);
+            } else {
+                apply(now, mPendingCode, state);
+            }
+        }
+    }
+
+    private void apply(long now, int code, CommandsInterface.RadioState state) {
+        mLastApplied = now;
+        record(now, code, state, ACTION_APPLIED);
+        mRil.setRadioState(state);
+    }
+
+    private void record(long now, int code, CommandsInterface.RadioState state, byte action) {
+        mTotals[action]++;
+        int slot = mNext;
+        mTimes[slot] = now;
+        mCodes[slot] = code;
+        mStates[slot] = (byte) state.ordinal();
+        mActions[slot] = action;
+        mNext = (slot + 1) % HISTORY;
+        if (mCount < HISTORY) {
+            mCount++;
+        }
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.print(" RadioStateFilter: holdoff=" + mHoldoffMs + "ms pending=" + mPending);
+        for (int i = 0; i < ACTION_NAMES.length; i++) {
+            pw.print(" " + ACTION_NAMES[i] + "=" + mTotals[i]);
+        }
+        pw.println();
+        long now = SystemClock.elapsedRealtime();
+        int start = (mNext - mCount + HISTORY) % HISTORY;
+        for (int i = 0; i < mCount; i++) {
+            int slot = (start + i) % HISTORY;
+            pw.println("  -" + (now - mTimes[slot]) + "ms "
+                    + (mCodes[slot] == SOURCE_ICC ? "icc" : "code=" + mCodes[slot])
+                    + " " + STATES[mStates[slot]] + " " + ACTION_NAMES[mActions[slot]]);
+        }
+    }
+}